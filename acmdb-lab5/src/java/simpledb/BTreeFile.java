@@ -139,6 +139,21 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	// see DbFile.java for javadocs
+	public Page createPage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch(id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default:
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should
 	 * be called from the BufferPool when pages are flushed to disk
@@ -200,10 +215,20 @@ public class BTreeFile implements DbFile {
 			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
 
 		BTreeInternalPage pg = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		if (f == null){
-			BTreePageId nxt = pg.iterator().next().getLeftChild();
-			return findLeafPage(tid, dirtypages, nxt, perm, f);
-		}
+		return findLeafPage(tid, dirtypages, childFor(pg, f), perm, f);
+	}
+
+	/**
+	 * Finds the child of an internal page to descend to in search of the
+	 * left-most leaf page possibly containing the key field f.
+	 *
+	 * @param pg - the internal page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the child to descend to
+	 */
+	private BTreePageId childFor(BTreeInternalPage pg, Field f) throws DbException {
+		if (f == null)
+			return pg.iterator().next().getLeftChild();
 		BTreeEntry e = null;
 		boolean left = false;
 		for (BTreeInternalPageIterator i = (BTreeInternalPageIterator) pg.iterator(); i.hasNext();){
@@ -216,10 +241,64 @@ public class BTreeFile implements DbFile {
 		}
 		if (e == null)
 			throw new DbException("what the fuck with findLeafPage?");
-		BTreePageId nxt;
-		if (left) nxt = e.getLeftChild();
-		else nxt = e.getRightChild();
-        return findLeafPage(tid, dirtypages, nxt, perm, f);
+		if (left) return e.getLeftChild();
+		else return e.getRightChild();
+	}
+
+	/**
+	 * Finds the left-most leaf page possibly containing the key field f like
+	 * findLeafPage, locking the internal nodes along the path with READ_ONLY
+	 * permission but not the leaf page itself.  Used by readers that lock the
+	 * leaf pages only while they read them.
+	 *
+	 * @param tid - the transaction id
+	 * @param root - the root page of the tree
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the id of the leaf page
+	 */
+	BTreePageId findLeafPageId(TransactionId tid, BTreePageId root, Field f)
+			throws DbException, TransactionAbortedException {
+		BTreePageId pid = root;
+		while (pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage pg = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+					Permissions.READ_ONLY);
+			pid = childFor(pg, f);
+		}
+		return pid;
+	}
+
+	/**
+	 * Finds the smallest key in the tree greater than or equal to key, starting
+	 * from the leaf page where key belongs and moving right.  The leaf pages
+	 * to the right are read with short READ_ONLY locks.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages tid has dirtied in this operation
+	 * @param pid - the leaf page where key belongs
+	 * @param key - the key
+	 * @return the next key, or null if there is none
+	 */
+	private Field nextKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Field key)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		while (pid != null) {
+			boolean held = dirtypages.containsKey(pid) || bp.holdsLock(tid, pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			Field next = null;
+			Iterator<Tuple> it = leaf.iterator();
+			while (next == null && it.hasNext()) {
+				Field k = it.next().getField(keyField);
+				if (k.compare(Op.GREATER_THAN_OR_EQ, key))
+					next = k;
+			}
+			BTreePageId right = leaf.getRightSiblingId();
+			if (!held)
+				bp.releaseShared(tid, pid);
+			if (next != null)
+				return next;
+			pid = right;
+		}
+		return null;
 	}
 
 	/**
@@ -520,13 +599,26 @@ public class BTreeFile implements DbFile {
 			rootPtr.setRootId(rootId);
 		}
 
+		// lock the next key, which stands for the gap the new key goes into, so
+		// that the insert waits for the index scans that read the gap; this is
+		// done before the leaf page is locked for writing, so that the scans can
+		// go on reading it meanwhile
+		Field key = t.getField(keyField);
+		Field next = nextKey(tid, dirtypages, findLeafPageId(tid, rootId, key), key);
+		Database.getBufferPool().lockKey(tid, tableid, next, Permissions.READ_WRITE);
+
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
 		}
 
+		// another transaction may have inserted a key into the gap meanwhile
+		Field current = nextKey(tid, dirtypages, leafPage.getId(), key);
+		if (current == null ? next != null : next == null || !current.equals(next))
+			Database.getBufferPool().lockKey(tid, tableid, current, Permissions.READ_WRITE);
+
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
 
@@ -985,6 +1077,10 @@ public class BTreeFile implements DbFile {
 
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
+		// index scans that read the key, or the gap before a key they read,
+		// hold a lock on the key
+		Database.getBufferPool().lockKey(tid, tableid, t.getField(keyField), Permissions.READ_WRITE);
+
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -1045,38 +1141,11 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		int emptyPageNo = claimEmptyPageNo(tid, dirtypages, Integer.MAX_VALUE);
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
-
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
-		}
-
-		// at this point if headerId is null, either there are no header pages
+		// at this point if emptyPageNo is -1, either there are no header pages
 		// or there are no free slots
-		if(headerId == null) {
+		if(emptyPageNo == -1) {
 			synchronized(this) {
 				// create the new page
 				BufferedOutputStream bw = new BufferedOutputStream(
@@ -1091,6 +1160,46 @@ public class BTreeFile implements DbFile {
 		return emptyPageNo;
 	}
 
+	/**
+	 * Find the first empty slot recorded in the header pages and mark it used, provided the
+	 * corresponding page number is below limit.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param limit - only page numbers strictly less than limit are claimed
+	 * @return the page number of the claimed page, or -1 if there is no empty page below limit
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private int claimEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages, int limit)
+			throws DbException, IOException, TransactionAbortedException {
+		// get a read lock on the root pointer page and use it to locate the first header page
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int headerPageCount = 0;
+
+		// try to find a header page with an empty slot
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int emptySlot = headerPage.getEmptySlot();
+			if(emptySlot != -1) {
+				int emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				if(emptyPageNo >= limit) {
+					return -1;
+				}
+				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				headerPage.markSlotUsed(emptySlot, true);
+				return emptyPageNo;
+			}
+			headerId = headerPage.getNextPageId();
+			headerPageCount++;
+		}
+
+		return -1;
+	}
+
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
 	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and
@@ -1212,6 +1321,437 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * A unit of compaction work which is run inside its own transaction.
+	 * @see #runCompactionStep(CompactionStep)
+	 */
+	private interface CompactionStep<T> {
+		T run(TransactionId tid, HashMap<PageId, Page> dirtypages)
+				throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * Compact this BTreeFile online. Adjacent leaf pages that fit on one page are merged,
+	 * internal pages are coalesced with their right sibling as the scan leaves them, pages
+	 * at the end of the file are relocated into the free pages recorded in the header pages,
+	 * and finally the free pages at the end of the file are truncated away.
+	 *
+	 * Every step runs in its own short transaction touching a bounded number of pages, so
+	 * foreground transactions are only ever blocked for the duration of one step. A step
+	 * that is aborted (e.g. because of a deadlock) is retried.
+	 *
+	 * @param pagesPerTransaction - the number of leaf pages visited or pages relocated by
+	 * each transaction
+	 * @return the number of pages removed from the file
+	 * @see #compactLeafPages(TransactionId, HashMap, Field, int)
+	 * @see #relocateTailPages(TransactionId, HashMap, int)
+	 * @see #truncateFreePages(TransactionId, HashMap)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 */
+	public int compact(int pagesPerTransaction) throws DbException, IOException {
+		int before = numPages();
+
+		Field key = null;
+		do {
+			final Field fromKey = key;
+			key = runCompactionStep((tid, dirtypages) ->
+					compactLeafPages(tid, dirtypages, fromKey, pagesPerTransaction));
+		} while(key != null);
+
+		while(runCompactionStep((tid, dirtypages) ->
+				relocateTailPages(tid, dirtypages, pagesPerTransaction)));
+
+		runCompactionStep((tid, dirtypages) -> truncateFreePages(tid, dirtypages));
+		return before - numPages();
+	}
+
+	/**
+	 * Run one compaction step in a new transaction, registering the pages it dirtied with
+	 * the buffer pool before committing. The step is retried if it is aborted.
+	 *
+	 * @param step - the work to do
+	 * @return the result of the step
+	 * @see Transaction#runWithRetry(Transaction.Step)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 */
+	private <T> T runCompactionStep(CompactionStep<T> step) throws DbException, IOException {
+		return Transaction.runWithRetry(tid -> {
+			HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+			T result = step.run(tid, dirtypages);
+			Database.getBufferPool().markDirtyPages(tid, new ArrayList<Page>(dirtypages.values()));
+			return result;
+		});
+	}
+
+	/**
+	 * Walk the leaf level starting at the leaf page containing fromKey, merging each leaf page
+	 * with its right sibling whenever both share a parent and their tuples fit on one page.
+	 * When the scan moves on to a leaf page with a different parent, the parent it leaves is
+	 * coalesced with its own right sibling if possible.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param fromKey - the key to resume from, or null to start at the left-most leaf page
+	 * @param maxPages - the number of leaf pages to visit before returning
+	 * @return the key to resume from in the next step, or null if the last leaf page was reached
+	 * @see #coalesceInternalPage(TransactionId, HashMap, BTreePageId)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected Field compactLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, Field fromKey,
+			int maxPages) throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(rootId == null || rootId.pgcateg() == BTreePageId.LEAF) {
+			return null;
+		}
+
+		BTreeLeafPage page = findLeafPage(tid, dirtypages, rootId, Permissions.READ_ONLY, fromKey);
+		int visited = 0;
+		while(true) {
+			BTreePageId rightId = page.getRightSiblingId();
+			if(rightId == null) {
+				coalesceInternalPage(tid, dirtypages, page.getParentId());
+				return null;
+			}
+
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+			if(page.getParentId().equals(right.getParentId()) &&
+					page.getNumTuples() + right.getNumTuples() <= page.getMaxTuples()) {
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(),
+						Permissions.READ_WRITE);
+				page = (BTreeLeafPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+				right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+				mergeLeafPages(tid, dirtypages, page, right, parent, getParentEntry(parent, page.getId()));
+			}
+			else {
+				if(!page.getParentId().equals(right.getParentId())) {
+					coalesceInternalPage(tid, dirtypages, page.getParentId());
+				}
+				page = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+			}
+
+			// only stop once the resume key moves forward, so that runs of duplicate keys
+			// spanning several pages cannot make us revisit the same page forever
+			Iterator<Tuple> it = page.iterator();
+			if(++visited >= maxPages && it.hasNext()) {
+				Field key = it.next().getField(keyField);
+				if(fromKey == null || key.compare(Op.GREATER_THAN, fromKey)) {
+					return key;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Coalesce an internal page which the leaf scan is leaving with its right sibling, if the
+	 * entries of both pages (plus the key pulled down from the parent) fit on one page. If the
+	 * page is the right-most child of its parent, the scan is leaving the parent as well, so
+	 * the parent is considered instead.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the internal page the scan is leaving
+	 * @see #mergeInternalPages(TransactionId, HashMap, BTreeInternalPage, BTreeInternalPage, BTreeInternalPage, BTreeEntry)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void coalesceInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			BTreePageId parentId = page.getParentId();
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				return;
+			}
+
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+			BTreeEntry entry = getParentEntry(parent, pid);
+			if(entry == null) {
+				pid = parentId;
+				continue;
+			}
+
+			BTreePageId rightId = entry.getRightChild();
+			BTreeInternalPage right = (BTreeInternalPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+			if(page.getNumEntries() + right.getNumEntries() < page.getMaxEntries()) {
+				parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+				right = (BTreeInternalPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+				mergeInternalPages(tid, dirtypages, page, right, parent, getParentEntry(parent, pid));
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @param parent - an internal page
+	 * @param child - the id of a child of parent
+	 * @return the entry in parent whose left child is child, or null if child is the right-most child
+	 */
+	private BTreeEntry getParentEntry(BTreeInternalPage parent, BTreePageId child) {
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(child)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the ids of all pages which are in use by this BTreeFile by walking the header
+	 * page chain and the internal levels of the tree (leaf pages are not read).
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return a map from page number to page id of every page in use
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private TreeMap<Integer, BTreePageId> getUsedPageIds(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		TreeMap<Integer, BTreePageId> used = new TreeMap<Integer, BTreePageId>();
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			used.put(headerId.pageNumber(), headerId);
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+
+		LinkedList<BTreePageId> queue = new LinkedList<BTreePageId>();
+		if(rootPtr.getRootId() != null) {
+			queue.add(rootPtr.getRootId());
+		}
+		while(!queue.isEmpty()) {
+			BTreePageId pid = queue.poll();
+			used.put(pid.pageNumber(), pid);
+			if(pid.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+				Iterator<BTreeEntry> it = page.iterator();
+				BTreeEntry e = null;
+				while(it.hasNext()) {
+					e = it.next();
+					queue.add(e.getLeftChild());
+				}
+				if(e != null) {
+					queue.add(e.getRightChild());
+				}
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Move up to maxPages pages from the end of the file into empty pages closer to the
+	 * start of the file, so that the free pages end up at the end of the file.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param maxPages - the maximum number of pages to move
+	 * @return true if maxPages pages were moved and there may be more to move
+	 * @see #relocatePage(TransactionId, HashMap, BTreePageId, int)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected boolean relocateTailPages(TransactionId tid, HashMap<PageId, Page> dirtypages, int maxPages)
+			throws DbException, IOException, TransactionAbortedException {
+		TreeMap<Integer, BTreePageId> used = getUsedPageIds(tid, dirtypages);
+		for(int moved = 0; moved < maxPages; moved++) {
+			if(used.isEmpty()) {
+				return false;
+			}
+			Map.Entry<Integer, BTreePageId> last = used.lastEntry();
+			int emptyPageNo = claimEmptyPageNo(tid, dirtypages, last.getKey());
+			if(emptyPageNo == -1) {
+				return false;
+			}
+			BTreePageId newId = relocatePage(tid, dirtypages, last.getValue(), emptyPageNo);
+			used.remove(last.getKey());
+			used.put(emptyPageNo, newId);
+		}
+		return true;
+	}
+
+	/**
+	 * Move a page to a new (already claimed) page number, updating every pointer to it:
+	 * the root pointer or parent entries, the sibling pointers of leaf pages, the parent
+	 * pointers of the children of internal pages, and the header page chain. The old page
+	 * is then marked empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page to move
+	 * @param newPageNo - the page number to move the page to
+	 * @return the new id of the page
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreePageId relocatePage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			int newPageNo) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId newId = new BTreePageId(tableid, newPageNo, pid.pgcateg());
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+
+		// copy the page into the buffer pool as a dirty page at its new location, replacing
+		// the free page there, so that it is logged and written back like any other update
+		discardPages(dirtypages, newPageNo);
+		Page free = getPage(tid, dirtypages, newId, Permissions.READ_WRITE);
+		Page moved = createPage(newId, page.getPageData());
+		if(moved instanceof BTreeHeaderPage) {
+			((BTreeHeaderPage) moved).setBeforeImage(free.getBeforeImage().getPageData());
+		}
+		else {
+			((BTreePage) moved).setBeforeImage(free.getBeforeImage().getPageData());
+		}
+		dirtypages.put(newId, moved);
+
+		if(pid.pgcateg() == BTreePageId.HEADER) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) moved;
+			BTreePageId prevId = headerPage.getPrevPageId();
+			BTreePageId nextId = headerPage.getNextPageId();
+			if(prevId == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newId);
+			}
+			else {
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				prevPage.setNextPageId(newId);
+			}
+			if(nextId != null) {
+				BTreeHeaderPage nextPage = (BTreeHeaderPage) getPage(tid, dirtypages, nextId, Permissions.READ_WRITE);
+				nextPage.setPrevPageId(newId);
+			}
+		}
+		else {
+			BTreePageId parentId = ((BTreePage) moved).getParentId();
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				rootPtr.setRootId(newId);
+			}
+			else {
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				Iterator<BTreeEntry> it = parent.iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					boolean changed = false;
+					if(e.getLeftChild().equals(pid)) {
+						e.setLeftChild(newId);
+						changed = true;
+					}
+					if(e.getRightChild().equals(pid)) {
+						e.setRightChild(newId);
+						changed = true;
+					}
+					if(changed) {
+						parent.updateEntry(e);
+					}
+				}
+			}
+
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage leafPage = (BTreeLeafPage) moved;
+				if(leafPage.getLeftSiblingId() != null) {
+					BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages,
+							leafPage.getLeftSiblingId(), Permissions.READ_WRITE);
+					leftSibling.setRightSiblingId(newId);
+				}
+				if(leafPage.getRightSiblingId() != null) {
+					BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages,
+							leafPage.getRightSiblingId(), Permissions.READ_WRITE);
+					rightSibling.setLeftSiblingId(newId);
+				}
+			}
+			else {
+				updateParentPointers(tid, dirtypages, (BTreeInternalPage) moved);
+			}
+		}
+
+		discardPages(dirtypages, pid.pageNumber());
+		setEmptyPage(tid, dirtypages, pid.pageNumber());
+		return newId;
+	}
+
+	/**
+	 * Remove the pages of every category with the given page number from the buffer pool
+	 * and from dirtypages, since that page number is reused or no longer exists.
+	 *
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgNo - the page number
+	 */
+	private void discardPages(HashMap<PageId, Page> dirtypages, int pgNo) {
+		int[] categs = {BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER};
+		for(int categ : categs) {
+			BTreePageId pid = new BTreePageId(tableid, pgNo, categ);
+			Database.getBufferPool().discardPage(pid);
+			dirtypages.remove(pid);
+		}
+	}
+
+	/**
+	 * Truncate the run of empty pages at the end of the file. All header pages are locked
+	 * so that none of these pages can be handed out concurrently, and their slots are
+	 * marked used afterwards since the pages no longer exist.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the number of pages removed from the file
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected int truncateFreePages(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		ArrayList<BTreeHeaderPage> headerPages = new ArrayList<BTreeHeaderPage>();
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+			headerPages.add(headerPage);
+			headerId = headerPage.getNextPageId();
+		}
+
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		synchronized(this) {
+			int oldNumPages = numPages();
+			int newNumPages = oldNumPages;
+			while(newNumPages > 1 && newNumPages < headerPages.size() * numSlots &&
+					!headerPages.get(newNumPages / numSlots).isSlotUsed(newNumPages % numSlots)) {
+				newNumPages--;
+			}
+			if(newNumPages == oldNumPages) {
+				return 0;
+			}
+
+			for(int pgNo = newNumPages + 1; pgNo <= oldNumPages; pgNo++) {
+				headerPages.get(pgNo / numSlots).markSlotUsed(pgNo % numSlots, true);
+				discardPages(dirtypages, pgNo);
+			}
+
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) newNumPages * BufferPool.getPageSize());
+			rf.close();
+			return oldNumPages - newNumPages;
+		}
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1268,10 +1808,23 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = pin(f.findLeafPage(tid, root, Permissions.READ_ONLY, null).getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin the leaf page the iterator moves to, releasing the pin on the current one
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+	}
+
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1286,11 +1839,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
+				unpin();
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1315,6 +1868,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
 		curp = null;
 	}
@@ -1322,12 +1876,20 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File.
+ * <p>
+ * The iterator locks the keys of the tuples it returns, and the key that ends
+ * its range (or the end of the index), so that no other transaction inserts
+ * into the range or deletes from it until the transaction completes.  The
+ * leaf pages are locked only while they are read, so that inserts into a
+ * leaf page outside the range do not wait for the scan.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// whether tid held a lock on curp before the iterator read it
+	boolean curHeld;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1355,14 +1917,40 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			moveTo(f.findLeafPageId(tid, root, ipred.getField()));
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			moveTo(f.findLeafPageId(tid, root, null));
 		}
 		it = curp.iterator();
 	}
 
+	/**
+	 * Pin and lock the leaf page the iterator moves to, then release the pin
+	 * and the lock on the current one
+	 */
+	private void moveTo(BTreePageId pid) throws DbException, TransactionAbortedException {
+		boolean held = Database.getBufferPool().holdsLock(tid, pid);
+		BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		release();
+		curp = next;
+		curHeld = held;
+	}
+
+	private void release() {
+		if (curp == null)
+			return;
+		Database.getBufferPool().unpinPage(tid, curp.getId());
+		if (!curHeld)
+			Database.getBufferPool().releaseShared(tid, curp.getId());
+	}
+
+	/** Lock the key of a tuple, or the end of the index if key is null, and return the tuple */
+	private Tuple lockKey(Tuple t, Field key) throws TransactionAbortedException {
+		Database.getBufferPool().lockKey(tid, f.getId(), key, Permissions.READ_ONLY);
+		return t;
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1376,30 +1964,33 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
+				Field key = t.getField(f.keyField());
+				if (key.compare(ipred.getOp(), ipred.getField())) {
+					return lockKey(t, key);
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
-					return null;
+					it = null;
+					return lockKey(null, key);
 				}
 				else if(ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
-					return null;
+					it = null;
+					return lockKey(null, key);
 				}
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
-				return null;
+				it = null;
+				return lockKey(null, null);
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				moveTo(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1420,6 +2011,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		release();
 		it = null;
+		curp = null;
 	}
 }
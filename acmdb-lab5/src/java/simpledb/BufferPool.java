@@ -4,6 +4,8 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,9 +14,36 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page, and an intention lock on its table.  The
+ * locks are granted by a {@link LockManager}, which queues conflicting
+ * requests until they can be granted and escalates the page locks of large
+ * scans to a table lock.
+ * <p>
+ * Read-only transactions may instead run on a snapshot (see
+ * {@link #beginSnapshot}): they take no locks, and read every page as it was
+ * committed when they began, from the {@link VersionStore} or from the before
+ * image of the cached page.  Readers and writers then never block each other.
+ * Optimistic transactions (see {@link #beginOptimistic}) also read a
+ * snapshot, and update private copies of the pages; they lock and validate
+ * the pages they accessed only when they commit.
+ * <p>
+ * The pool has no monitor of its own.  The monitor of each {@link Shard}
+ * guards its cached pages, ring pages, pins, shared before images,
+ * replacement policy and frame store.  A {@link Region} counts its cached
+ * pages atomically, and its capacity, which resize changes, is volatile.  The
+ * per-transaction state (rings, pins, optimistic and READ COMMITTED
+ * transactions, row writers) lives in concurrent maps; a ring or a pin list
+ * is guarded by its own monitor.  The LockManager and the VersionStore guard
+ * their own state, and are called with a shard lock held but never call back.
+ * <p>
+ * Locks are taken in the order: the LogFile monitor, the LogFile's flush
+ * lock, a shard, a page's monitor; the LockManager latch and the
+ * VersionStore monitor come last.  No thread takes a lock while holding one
+ * that comes later.  A record is appended under the LogFile monitor and the
+ * shard lock; the log is forced with neither held, and the page written back
+ * afterwards under the shard lock only.
  *
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -27,127 +56,177 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    /**
-     * Creates a BufferPool that caches up to numPages pages.
-     *
-     * @param numPages maximum number of pages in this buffer pool.
-     */
+    /** Name of the pool that caches the pages of tables not assigned to any pool. */
+    public static final String DEFAULT_POOL = "default";
 
-    private final int numPages;
-    //private Map<PageId, Integer> LRU;
-    private ConcurrentHashMap<PageId, Page> cache;
+    /** Maximum number of shards the cached pages are spread over. */
+    static final int MAX_SHARDS = 16;
 
-    /*private void updateLRU(PageId pid){
-        LRU.put(pid, numPages+1);
-        LRU.replaceAll((k,v)->v==0?0:v-1);
-    }*/
-    private ConcurrentHashMap<PageId, PLock> pLockMap;
-    private ConcurrentHashMap<TransactionId, Set<PageId>> tLockMap;
-    private DGraph dGraph;
+    /**
+     * Minimum number of pages per shard, so that each shard's replacement
+     * policy has enough pages to tell hot pages from cold ones.
+     */
+    static final int MIN_SHARD_PAGES = 16;
 
-    private class PLock {
-        private PageId pid;
-        private Set<TransactionId> sLock;
-        private TransactionId eLock = null;
+    /**
+     * A part of the cache, holding the pages whose PageId hashes to it.  The
+     * pages and replacement state of a shard are guarded by the shard's own
+     * monitor, so requests for pages in different shards do not contend.
+     */
+    private static class Shard {
+        final Region region;
+        final HashMap<PageId, Page> pages = new HashMap<>();
+        //pages loaded into some transaction's ring and not used normally since
+        final HashSet<PageId> ringPages = new HashSet<>();
+        //page -> number of outstanding pins; pinned pages are never evicted
+        final HashMap<PageId, Integer> pinCounts = new HashMap<>();
+        //page -> its before image, shared by the read-only snapshots that
+        //read the cached page; dropped whenever the before image changes
+        final HashMap<PageId, Page> committed = new HashMap<>();
+        final ReplacementPolicy policy;
+        //clean pages evicted from this shard, or null
+        final OffHeapFrameStore frames;
+        //number of times a page left this shard; a page read from disk while
+        //it stays the same is not older than a page written back meanwhile
+        long removals;
 
-        PLock(PageId pid){
-            this.pid = pid;
-            this.sLock = ConcurrentHashMap.newKeySet();
+        boolean isPinned(PageId pid) {
+            return pinCounts.containsKey(pid);
         }
 
-        boolean requestLock(Permissions perm, TransactionId tid){
-            if (perm.equals(Permissions.READ_ONLY)){
-                if (eLock != null)
-                    return eLock.equals(tid);
-                sLock.add(tid);
-                return true;
-            }
-            if (perm.equals(Permissions.READ_WRITE)){
-                if (eLock != null)
-                    return eLock.equals(tid);
-                if (sLock.size() > 1)
-                    return false;
-                if (sLock.isEmpty() || sLock.contains(tid)){
-                    eLock = tid;
-                    sLock.clear();
-                    return true;
-                }
-                return false;
-            }
-            throw new Error("what is the fucking permission when request a lock");
+        void pin(PageId pid) {
+            pinCounts.merge(pid, 1, Integer::sum);
         }
 
-        void releaseLock(TransactionId tid){
-            if (tid.equals(eLock))
-                eLock = null;
-            else sLock.remove(tid);
+        void unpin(PageId pid) {
+            pinCounts.computeIfPresent(pid, (p, n) -> n == 1 ? null : n - 1);
         }
 
-        boolean holdsLock(TransactionId tid){
-            return tid.equals(eLock) || sLock.contains(tid);
+        Shard(Region region, ReplacementPolicy policy, OffHeapFrameStore frames) {
+            this.region = region;
+            this.policy = policy;
+            this.frames = frames;
         }
+    }
 
-        boolean isExclusive(){
-            return eLock != null;
+    /**
+     * A named pool: a set of shards with its own capacity and replacement
+     * policy.  Each table caches its pages in the pool the catalog assigns it
+     * to, so the pages of a large table never evict those of the tables in
+     * other pools.
+     */
+    private static class Region {
+        final String name;
+        final Shard[] shards;
+        //number of pages cached in all shards, never more than numPages
+        final AtomicInteger numCached = new AtomicInteger();
+        //changed by resize; the number of shards stays as constructed
+        volatile int numPages;
+
+        Region(String name, int numPages, IntFunction<ReplacementPolicy> policy, long frameStoreBytes) {
+            this.name = name;
+            this.numPages = numPages;
+            int numShards = Math.max(1, Math.min(MAX_SHARDS, numPages / MIN_SHARD_PAGES));
+            this.shards = new Shard[numShards];
+            for (int i = 0; i < numShards; ++i) {
+                OffHeapFrameStore frames = frameStoreBytes <= 0 ? null
+                        : new OffHeapFrameStore(frameStoreBytes / numShards, getPageSize());
+                shards[i] = new Shard(this, policy.apply((numPages + numShards - 1) / numShards), frames);
+            }
         }
 
-        Set<TransactionId> lockedTids() {
-            Set<TransactionId> tid = new HashSet<>(sLock);
-            if (eLock != null)
-                tid.add(eLock);
-            return tid;
+        int shardIndex(PageId pid) {
+            return Math.floorMod(pid.hashCode(), shards.length);
         }
     }
 
-    //help to check if there is a dead lock
-    private class DGraph{
-        private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> edges = new ConcurrentHashMap<>();
+    private final Region defaultPool;
+    private final ConcurrentHashMap<String, Region> pools = new ConcurrentHashMap<>();
 
-        synchronized void update(TransactionId tid, PageId pid){
-            edges.putIfAbsent(tid, new HashSet<>());
-            HashSet<TransactionId> edge = edges.get(tid);
-            edge.clear();
-            if (pid == null)
-                return;
-            Set<TransactionId> lockedT;
-            synchronized (pLockMap.get(pid)){
-                lockedT = pLockMap.get(pid).lockedTids();
-            }
-            edge.addAll(lockedT);
-        }
-
-        synchronized boolean hasCycle(TransactionId tid){
-            Queue<TransactionId> queue = new LinkedList<>();
-            HashSet<TransactionId> visited = new HashSet<>();
-            queue.add(tid);
-            //bfs
-            while (!queue.isEmpty()){
-                TransactionId cur = queue.poll();
-                HashSet<TransactionId> neighbors = edges.get(cur);
-                if (neighbors == null)
-                    continue;
-                for (TransactionId t : neighbors){
-                    if (!visited.contains(t)){
-                        queue.add(t);
-                        visited.add(t);
-                    }
-                    if (t.equals(tid))
-                        break;
-                }
-            }
-            return visited.contains(tid);
-        }
+    /**
+     * How a caller of getPage is going to use the pages it requests.
+     */
+    public enum AccessStrategy {
+        /** Random access; the page is cached under the replacement policy. */
+        NORMAL,
+        /**
+         * A large sequential scan.  Pages the scan loads recycle a small ring
+         * of frames private to its transaction, so the scan does not push the
+         * working set of other queries out of the pool.
+         */
+        SEQUENTIAL_SCAN,
+        /**
+         * A bulk update.  Like SEQUENTIAL_SCAN, but dirty pages are left to
+         * the replacement policy, since writing them back would force the log.
+         */
+        BULK_WRITE
+    }
+
+    /** Maximum number of pages in the ring of a transaction. */
+    static final int RING_PAGES = 8;
 
+    //transaction -> the pages loaded by its ring strategy accesses, oldest first
+    private final ConcurrentHashMap<TransactionId, ArrayDeque<PageId>> rings = new ConcurrentHashMap<>();
+    //transaction -> the pins it has not released yet, one entry per pin
+    private final ConcurrentHashMap<TransactionId, List<PageId>> pins = new ConcurrentHashMap<>();
+    private final LockManager lockManager = new LockManager();
+    private final VersionStore versions = new VersionStore();
+
+    /** The pages an optimistic transaction read, and its private copies of the pages it updates. */
+    private static class Optimistic {
+        final Set<PageId> reads = ConcurrentHashMap.newKeySet();
+        final ConcurrentHashMap<PageId, Page> writes = new ConcurrentHashMap<>();
+        volatile boolean validated;
     }
 
+    private final ConcurrentHashMap<TransactionId, Optimistic> optimistic = new ConcurrentHashMap<>();
+    /** The READ COMMITTED transactions, and the rows each one holds read locks on. */
+    private final ConcurrentHashMap<TransactionId, Set<RecordId>> readCommitted = new ConcurrentHashMap<>();
+    //tables whose tuples are locked one by one instead of by page
+    private final Set<Integer> rowLockedTables = ConcurrentHashMap.newKeySet();
+    //transaction -> the tuples it locked exclusively under row locking
+    private final ConcurrentHashMap<TransactionId, Set<RecordId>> rowChanges = new ConcurrentHashMap<>();
+    //page -> the transactions updating its tuples under row locking; these
+    //pages are neither evicted nor flushed, so other transactions' uncommitted
+    //rows never reach the disk
+    private final ConcurrentHashMap<PageId, Set<TransactionId>> rowWriters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
     public BufferPool(int numPages) {
+        this(numPages, ClockPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts pages
+     * as chosen by the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy creates the replacement policy for a pool of the given size,
+     *   e.g. ClockPolicy::new or TwoQueuePolicy::new
+     */
+    public BufferPool(int numPages, IntFunction<ReplacementPolicy> policy) {
+        this(numPages, policy, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages page objects, backed by
+     * an off-heap frame store of frameStoreBytes bytes.  Clean pages evicted
+     * from the pool are kept in the frame store and rebuilt from it instead of
+     * being read from disk, so most of the cache can live outside the Java heap.
+     *
+     * @param numPages maximum number of page objects in this buffer pool.
+     * @param policy creates the replacement policy for a pool of the given size
+     * @param frameStoreBytes the size of the off-heap frame store in bytes, or
+     *   0 for none
+     */
+    public BufferPool(int numPages, IntFunction<ReplacementPolicy> policy, long frameStoreBytes) {
         // some code goes here
-        this.numPages = numPages;
-        //this.LRU = new HashMap<>();
-        this.cache = new ConcurrentHashMap<>();
-        this.pLockMap = new ConcurrentHashMap<>();
-        this.tLockMap = new ConcurrentHashMap<>();
-        this.dGraph = new DGraph();
+        this.defaultPool = new Region(DEFAULT_POOL, numPages, policy, frameStoreBytes);
+        pools.put(DEFAULT_POOL, defaultPool);
     }
 
     public static int getPageSize() {
@@ -183,38 +262,645 @@ public class BufferPool {
 
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, caching it
+     * according to the given access strategy.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy how the caller accesses its pages
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, AccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, strategy, false);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage}, and pin it: the page
+     * is not evicted until it is unpinned.  Pins are reference counted, so a
+     * page pinned n times must be unpinned n times; pins that a transaction
+     * still holds are released when it completes.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @see #unpinPage
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, AccessStrategy.NORMAL);
+    }
+
+    /**
+     * Retrieve and pin the specified page, caching it according to the given
+     * access strategy.
+     * @see #pinPage(TransactionId, PageId, Permissions)
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, AccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, strategy, true);
+    }
+
+    /**
+     * Releases one pin of the specified page taken by the given transaction.
+     * Unpinning does not release the transaction's lock on the page.
+     *
+     * @param tid the transaction that pinned the page
+     * @param pid the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        List<PageId> pinned = pins.get(tid);
+        if (pinned == null || !pinned.remove(pid))
+            return;
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            shard.unpin(pid);
+        }
+        //a READ COMMITTED reader is done with a page once it unpins it
+        Set<RecordId> rows = readCommitted.get(tid);
+        if (rows != null && !pinned.contains(pid)) {
+            for (Iterator<RecordId> it = rows.iterator(); it.hasNext(); ) {
+                RecordId rid = it.next();
+                if (rid.getPageId().equals(pid)) {
+                    lockManager.releaseShared(tid, rid);
+                    it.remove();
+                }
+            }
+            lockManager.releaseShared(tid, pid);
+        }
+    }
+
+    /** Return true if the specified page is pinned by some transaction */
+    public boolean isPinned(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            return shard.isPinned(pid);
+        }
+    }
+
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, AccessStrategy strategy,
+                           boolean pin)
+        throws TransactionAbortedException, DbException {
         // some code goes here
-        pLockMap.putIfAbsent(pid, new PLock(pid));
-        boolean requestLock;
-        synchronized (pLockMap.get(pid)){
-            requestLock = pLockMap.get(pid).requestLock(perm, tid);
-        }
-
-        while (!requestLock){
-            Thread.yield();
-            dGraph.update(tid, pid);
-            if (dGraph.hasCycle(tid))
-                throw new TransactionAbortedException();
-            Thread.yield();
-            synchronized (pLockMap.get(pid)){
-                requestLock = pLockMap.get(pid).requestLock(perm, tid);
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null)
+            return snapshotPage(tid, snapshot, pid, perm, strategy);
+        lockManager.acquire(tid, pid, perm == Permissions.READ_WRITE);
+        return loadPage(tid, pid, strategy, pin);
+    }
+
+    /**
+     * Returns the image of a page committed as of timestamp ts.  The page is
+     * a private copy or a kept version, so it is neither locked nor pinned.
+     */
+    private Page snapshotPage(TransactionId tid, long ts, PageId pid, Permissions perm,
+                              AccessStrategy strategy)
+        throws DbException {
+        Optimistic occ = optimistic.get(tid);
+        if (occ != null && !occ.validated) {
+            Page own = occ.writes.get(pid);
+            if (own != null)
+                return own;
+            occ.reads.add(pid);
+            Page page = committedPage(tid, ts, pid, strategy, false);
+            if (perm == Permissions.READ_ONLY)
+                return page;
+            //the before image of the copy is the committed page it updates
+            Page copy = page.getBeforeImage();
+            own = occ.writes.putIfAbsent(pid, copy);
+            return own == null ? copy : own;
+        }
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("snapshot transaction " + tid + " cannot update page " + pid);
+        return committedPage(tid, ts, pid, strategy, true);
+    }
+
+    /**
+     * Returns the image of a page committed as of timestamp ts.  A read-only
+     * snapshot never changes the page, so it is given the image every other
+     * read-only snapshot reads, rather than a copy of its own.
+     *
+     * @param shared true to return the shared image of a cached page
+     */
+    private Page committedPage(TransactionId tid, long ts, PageId pid, AccessStrategy strategy,
+                               boolean shared)
+        throws DbException {
+        Shard shard = shardOf(pid);
+        while (true) {
+            synchronized (shard) {
+                Page version = versions.lookup(pid, ts);
+                if (version != null)
+                    return version;
+                Page cached = shard.pages.get(pid);
+                if (cached != null) {
+                    shard.policy.recordAccess(pid);
+                    if (!shared)
+                        return cached.getBeforeImage();
+                    Page image = shard.committed.get(pid);
+                    if (image == null) {
+                        image = cached.getBeforeImage();
+                        shard.committed.put(pid, image);
+                    }
+                    return image;
+                }
             }
+            //the page may be evicted again before it is looked up
+            loadPage(tid, pid, strategy, false);
+        }
+    }
+
+    /**
+     * Runs the transaction tid on a snapshot of the database as of the last
+     * commit.  It reads pages without locking them, and sees none of the
+     * changes committed after it began; it cannot update any page.
+     *
+     * @param tid a transaction that has not accessed any page yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return true if tid runs on a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.snapshotOf(tid) != null && !optimistic.containsKey(tid);
+    }
+
+    /**
+     * Runs the transaction tid optimistically.  It reads a snapshot of the
+     * database as of the last commit without locking any page, and updates
+     * private copies of the pages, which other transactions do not see.  When
+     * it commits it is validated: see {@link #validate}.
+     *
+     * @param tid a transaction that has not accessed any page yet
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.putIfAbsent(tid, new Optimistic());
+        versions.begin(tid);
+    }
+
+    /** @return true if tid runs optimistically */
+    public boolean isOptimistic(TransactionId tid) {
+        return optimistic.containsKey(tid);
+    }
+
+    /**
+     * Validates an optimistic transaction before it commits, and makes its
+     * private pages the cached pages, to be flushed by the commit.  The pages
+     * it read or updated are locked until it completes, so that no other
+     * transaction commits them meanwhile; if one did since its snapshot, the
+     * transaction read stale data and must abort.  Does nothing for other
+     * transactions.
+     *
+     * @param tid the transaction about to commit
+     * @throws TransactionAbortedException if the transaction failed validation,
+     *   or lost a deadlock while locking its pages; the caller aborts it
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException, DbException {
+        Optimistic occ = optimistic.get(tid);
+        if (occ == null || occ.validated)
+            return;
+        for (PageId pid : occ.writes.keySet())
+            lockManager.acquire(tid, pid, true);
+        for (PageId pid : occ.reads) {
+            if (!occ.writes.containsKey(pid))
+                lockManager.acquire(tid, pid, false);
         }
-        dGraph.update(tid, null);
-        tLockMap.putIfAbsent(tid, new HashSet<>());
-        tLockMap.get(tid).add(pid);
+        HashSet<PageId> accessed = new HashSet<>(occ.reads);
+        accessed.addAll(occ.writes.keySet());
+        if (versions.changedSince(accessed, versions.snapshotOf(tid)))
+            throw new TransactionAbortedException();
+        occ.validated = true;
+        ArrayList<Page> dirty = new ArrayList<>();
+        for (Page page : occ.writes.values()) {
+            if (page.isDirty() != null)
+                dirty.add(page);
+        }
+        cachePages(tid, dirty);
+    }
+
+    /** @return the number of committed page images kept for snapshot transactions */
+    public int getVersionCount() {
+        return versions.size();
+    }
 
-        if (cache.containsKey(pid))
-            return cache.get(pid);
+    /** Looks a page up in the pool, reading it in if needed, without locking it. */
+    private Page loadPage(TransactionId tid, PageId pid, AccessStrategy strategy, boolean pin)
+        throws DbException {
+        Shard shard = shardOf(pid);
+        byte[] frame = null;
+        synchronized (shard) {
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                shard.policy.recordAccess(pid);
+                //a page someone uses normally is no longer a ring page
+                if (strategy == AccessStrategy.NORMAL)
+                    shard.ringPages.remove(pid);
+                if (pin)
+                    pinLocked(shard, tid, pid);
+                return cached;
+            }
+            if (shard.frames != null)
+                frame = shard.frames.take(pid);
+        }
 
-        while (cache.size() >= numPages)
-            evictPage();
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        cache.put(pid, page);
+        reserveFrame(shard.region, pid);
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page page = null;
+        if (frame != null) {
+            try {
+                page = file.createPage(pid, frame);
+            } catch (IOException e) {
+                //fall back to reading the page from disk
+            }
+        }
+        if (page == null)
+            page = file.readPage(pid);
+        synchronized (shard) {
+            //another reader may have loaded the page meanwhile
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                shard.region.numCached.decrementAndGet();
+                shard.policy.recordAccess(pid);
+                if (pin)
+                    pinLocked(shard, tid, pid);
+                return cached;
+            }
+            shard.pages.put(pid, page);
+            shard.policy.recordAccess(pid);
+            if (strategy != AccessStrategy.NORMAL)
+                shard.ringPages.add(pid);
+            if (pin)
+                pinLocked(shard, tid, pid);
+        }
         page.setBeforeImage();
+        if (strategy != AccessStrategy.NORMAL)
+            addToRing(tid, pid);
         return page;
     }
 
+    /**
+     * Switches a table between page locking, the default, and row locking.
+     * Under row locking, transactions lock the tuples they read and update,
+     * and take only intention locks on the pages, so transactions that update
+     * different tuples of a page run concurrently.  Heap files support row
+     * locking; other files lock pages whatever this says.
+     */
+    public void setRowLocking(int tableId, boolean rowLocking) {
+        if (rowLocking)
+            rowLockedTables.add(tableId);
+        else
+            rowLockedTables.remove(tableId);
+    }
+
+    /** Return true if the tuples of the specified table are locked one by one */
+    public boolean isRowLocking(int tableId) {
+        return rowLockedTables.contains(tableId);
+    }
+
+    /**
+     * Retrieves and pins a page of a row locking table, taking only the
+     * intention locks on the page and its table.  The caller locks the tuples
+     * it uses with {@link #lockRow}, holds the page's monitor while it reads or
+     * changes the page, and unpins the page when done.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm READ_WRITE to update tuples of the page, READ_ONLY to read them
+     */
+    public Page pinRowPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if (snapshot != null)
+            return snapshotPage(tid, snapshot, pid, perm, AccessStrategy.NORMAL);
+        lockManager.acquireIntention(tid, pid, perm == Permissions.READ_WRITE);
+        return loadPage(tid, pid, AccessStrategy.NORMAL, true);
+    }
+
+    /**
+     * Locks a tuple of a row locking table, and its page and table in the
+     * matching intention mode.  May block if the lock is held by another
+     * transaction.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @param perm READ_WRITE to update the tuple, READ_ONLY to read it
+     */
+    public void lockRow(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        //a snapshot reads its rows from a private page, without locking them;
+        //an optimistic transaction validates the whole page
+        if (isOptimistic(tid) || (perm == Permissions.READ_ONLY && isSnapshot(tid)))
+            return;
+        lockManager.acquireTuple(tid, rid, perm == Permissions.READ_WRITE);
+        Set<RecordId> rows = readCommitted.get(tid);
+        if (rows != null) {
+            if (perm == Permissions.READ_ONLY)
+                rows.add(rid);
+            else
+                rows.remove(rid);
+        }
+        if (perm == Permissions.READ_WRITE)
+            addRowChange(tid, rid);
+    }
+
+    /**
+     * Locks an empty slot to insert a tuple into, unless another transaction
+     * holds a lock on it.  The caller has the page from {@link #pinRowPage}
+     * with READ_WRITE permissions.
+     *
+     * @return true if the slot is locked for tid
+     */
+    public boolean tryLockRow(TransactionId tid, RecordId rid) {
+        if (isOptimistic(tid))
+            return true;
+        if (!lockManager.tryAcquireTuple(tid, rid))
+            return false;
+        addRowChange(tid, rid);
+        return true;
+    }
+
+    private void addRowChange(TransactionId tid, RecordId rid) {
+        rowChanges.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(rid);
+        rowWriters.compute(rid.getPageId(), (p, writers) -> {
+            Set<TransactionId> updated = writers == null ? new HashSet<>() : writers;
+            updated.add(tid);
+            return updated;
+        });
+    }
+
+    /** @return the slots tid changed under row locking, by page */
+    private HashMap<PageId, List<Integer>> rowSlots(TransactionId tid) {
+        HashMap<PageId, List<Integer>> slots = new HashMap<>();
+        Set<RecordId> rows = rowChanges.get(tid);
+        if (rows != null) {
+            for (RecordId rid : rows)
+                slots.computeIfAbsent(rid.getPageId(), p -> new ArrayList<>()).add(rid.tupleno());
+        }
+        return slots;
+    }
+
+    /**
+     * Forgets that tid updates rows of its pages; a page that nobody updates
+     * any more is clean, since every committed row of it is on disk.
+     */
+    private void removeRowWriter(TransactionId tid) {
+        Set<RecordId> rows = rowChanges.remove(tid);
+        if (rows == null)
+            return;
+        HashSet<PageId> pages = new HashSet<>();
+        for (RecordId rid : rows)
+            pages.add(rid.getPageId());
+        for (PageId pid : pages)
+            removeRowWriter(tid, pid);
+    }
+
+    /** Forgets that tid updates rows of the given page. */
+    private void removeRowWriter(TransactionId tid, PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            Set<TransactionId> writers = rowWriters.computeIfPresent(pid, (p, w) -> {
+                w.remove(tid);
+                return w.isEmpty() ? null : w;
+            });
+            Page page = shard.pages.get(pid);
+            if (writers == null && page != null && !lockManager.holdsExclusive(tid, pid))
+                page.markDirty(false, null);
+        }
+    }
+
+    /**
+     * Loads a page into a free frame of the pool without locking it for any
+     * transaction, to warm the pool up.  Nothing is evicted to make room.
+     *
+     * @param pid the page to load
+     * @return false if the pool is full, true if the page is cached now
+     */
+    public boolean prefetchPage(PageId pid) {
+        Shard shard = shardOf(pid);
+        long removals;
+        synchronized (shard) {
+            if (shard.pages.containsKey(pid))
+                return true;
+            removals = shard.removals;
+        }
+        AtomicInteger numCached = shard.region.numCached;
+        int cached;
+        do {
+            cached = numCached.get();
+            if (cached >= shard.region.numPages)
+                return false;
+        } while (!numCached.compareAndSet(cached, cached + 1));
+        while (true) {
+            Page page;
+            try {
+                page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            } catch (RuntimeException e) {
+                numCached.decrementAndGet();
+                throw e;
+            }
+            synchronized (shard) {
+                if (shard.pages.containsKey(pid)) {
+                    numCached.decrementAndGet();
+                    return true;
+                }
+                //a transaction may have loaded, updated, written back and
+                //evicted the page during the read, which is then stale
+                if (shard.removals == removals) {
+                    shard.pages.put(pid, page);
+                    shard.policy.recordAccess(pid);
+                    page.setBeforeImage();
+                    return true;
+                }
+                removals = shard.removals;
+            }
+        }
+    }
+
+    /**
+     * Returns the page if it is cached in this buffer pool, without locking
+     * or loading it; its contents are only a hint to the caller.
+     *
+     * @param pid the page to look up
+     * @return the cached page, or null if it is not cached
+     */
+    Page getCachedPage(PageId pid) {
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            return shard.pages.get(pid);
+        }
+    }
+
+    /** @return the ids of the pages cached in this buffer pool right now */
+    public List<PageId> getResidentPages() {
+        ArrayList<PageId> resident = new ArrayList<>();
+        for (Region region : pools.values()) {
+            for (Shard shard : region.shards) {
+                synchronized (shard) {
+                    resident.addAll(shard.pages.keySet());
+                }
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * Returns the strategy for a sequential scan of a file: files that do
+     * not fit in the pool that caches them are scanned through a ring, since
+     * caching them would only flush the pool without ever producing a hit for
+     * the next scan.
+     *
+     * @param tableId the id of the scanned file
+     * @param filePages the number of pages in the scanned file
+     */
+    public AccessStrategy scanStrategy(int tableId, int filePages) {
+        Region region = region(Database.getCatalog().getBufferPoolName(tableId));
+        return filePages > region.numPages ? AccessStrategy.SEQUENTIAL_SCAN : AccessStrategy.NORMAL;
+    }
+
+    /**
+     * Adds a page to the ring of a transaction, recycling the oldest frame of
+     * the ring if the ring is full.
+     */
+    private void addToRing(TransactionId tid, PageId pid) {
+        ArrayDeque<PageId> ring = rings.computeIfAbsent(tid, t -> new ArrayDeque<>());
+        PageId oldest;
+        synchronized (ring) {
+            ring.add(pid);
+            if (ring.size() <= Math.max(1, Math.min(RING_PAGES, shardOf(pid).region.numPages / 4)))
+                return;
+            oldest = ring.poll();
+        }
+        Shard shard = shardOf(oldest);
+        synchronized (shard) {
+            if (!shard.ringPages.remove(oldest))
+                return;
+            Page page = shard.pages.get(oldest);
+            //dirty pages of a bulk write are only written back by eviction or commit
+            if (page == null || page.isDirty() != null || shard.isPinned(oldest))
+                return;
+            shard.pages.remove(oldest);
+            ++shard.removals;
+            shard.committed.remove(oldest);
+            shard.policy.remove(oldest);
+            shard.region.numCached.decrementAndGet();
+        }
+    }
+
+    /** Pins a page on behalf of tid; the caller holds the lock of the page's shard. */
+    private void pinLocked(Shard shard, TransactionId tid, PageId pid) {
+        shard.pin(pid);
+        pins.computeIfAbsent(tid, t -> Collections.synchronizedList(new ArrayList<>())).add(pid);
+    }
+
+    private Shard shardOf(PageId pid) {
+        Region region = poolOf(pid);
+        return region.shards[region.shardIndex(pid)];
+    }
+
+    /** @return the pool the catalog assigns the page to, or the default pool */
+    private Region poolOf(PageId pid) {
+        return region(Database.getCatalog().getBufferPoolName(pid));
+    }
+
+    /** @return the pool with the given name, or the default pool if there is none */
+    private Region region(String name) {
+        if (name == null)
+            return defaultPool;
+        Region region = pools.get(name);
+        return region == null ? defaultPool : region;
+    }
+
+    private Region pool(String name) {
+        Region region = pools.get(name);
+        if (region == null)
+            throw new NoSuchElementException("no buffer pool named " + name);
+        return region;
+    }
+
+    /**
+     * Adds a named pool with its own capacity and replacement policy.  Tables
+     * cache their pages in the pool the catalog assigns them to; pages of
+     * tables that are not assigned, or that are assigned to a pool that does
+     * not exist, are cached in the default pool.
+     *
+     * @param name the name of the pool
+     * @param numPages maximum number of pages in the pool
+     * @param policy creates the replacement policy for a pool of the given size
+     * @see Catalog#setBufferPool
+     */
+    public void addPool(String name, int numPages, IntFunction<ReplacementPolicy> policy) {
+        if (numPages < 1)
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        if (pools.putIfAbsent(name, new Region(name, numPages, policy, 0)) != null)
+            throw new IllegalArgumentException("there is already a buffer pool named " + name);
+    }
+
+    /** @return the names of the pools of this buffer pool, the default pool included */
+    public Set<String> getPoolNames() {
+        return new TreeSet<>(pools.keySet());
+    }
+
+    /**
+     * Makes room for one more page, evicting pages if the pool is full.
+     * @param pid the page that will be added
+     */
+    private void reserveFrame(Region region, PageId pid) throws DbException {
+        while (true) {
+            int cached = region.numCached.get();
+            if (cached < region.numPages) {
+                if (region.numCached.compareAndSet(cached, cached + 1))
+                    return;
+            }
+            else evictPage(region, region.shardIndex(pid));
+        }
+    }
+
+    /** @return the number of pages the default pool caches at most */
+    public int getNumPages() {
+        return defaultPool.numPages;
+    }
+
+    /** @return the number of pages the named pool caches at most */
+    public int getNumPages(String pool) {
+        return pool(pool).numPages;
+    }
+
+    /**
+     * Changes the capacity of the buffer pool while it is in use.  Growing
+     * takes effect immediately.  Shrinking evicts pages until the pool fits
+     * its new capacity, writing dirty pages back through the log as eviction
+     * always does; pages loaded concurrently also wait for the pool to fit.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool
+     * @throws DbException if pinned pages keep the pool over its new capacity;
+     *   the new capacity still holds, and the pool shrinks to it as frames
+     *   are needed after the pages are unpinned
+     */
+    public void resize(int numPages) throws DbException {
+        resize(DEFAULT_POOL, numPages);
+    }
+
+    /**
+     * Changes the capacity of the named pool while it is in use.
+     * @see #resize(int)
+     */
+    public void resize(String pool, int numPages) throws DbException {
+        if (numPages < 1)
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        Region region = pool(pool);
+        region.numPages = numPages;
+        int perShard = (numPages + region.shards.length - 1) / region.shards.length;
+        for (Shard shard : region.shards)
+            shard.policy.resize(perShard);
+        for (int start = 0; region.numCached.get() > numPages; start = (start + 1) % region.shards.length)
+            evictPage(region, start);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -227,10 +913,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        synchronized (pLockMap.get(pid)){
-            pLockMap.get(pid).releaseLock(tid);
-        }
-        tLockMap.get(tid).remove(pid);
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -244,15 +927,121 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Releases the shared lock tid took on a page only to read it, such as a
+     * leaf page an index scan has moved past; the index keys the scan locked
+     * keep its range.  An exclusive lock is kept until tid completes.
+     */
+    void releaseShared(TransactionId tid, PageId pid) {
+        lockManager.releaseShared(tid, pid);
+    }
+
+    /**
+     * Sets the isolation level of a transaction that takes locks; the default
+     * is {@link IsolationLevel#SERIALIZABLE}.  Under READ COMMITTED, the read
+     * locks on a page that iterators pin are released when the page is
+     * unpinned for the last time.
+     *
+     * @param tid the transaction
+     * @param level the isolation level for its reads from now on
+     */
+    public void setIsolationLevel(TransactionId tid, IsolationLevel level) {
+        if (level == IsolationLevel.READ_COMMITTED)
+            readCommitted.putIfAbsent(tid, ConcurrentHashMap.newKeySet());
+        else
+            readCommitted.remove(tid);
+    }
+
+    public IsolationLevel getIsolationLevel(TransactionId tid) {
+        return readCommitted.containsKey(tid) ? IsolationLevel.READ_COMMITTED : IsolationLevel.SERIALIZABLE;
+    }
+
+    /**
+     * Locks a key of a B+ tree index and the gap before it, blocking until the
+     * lock is granted.  Snapshot and optimistic transactions lock nothing.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the index
+     * @param key the key, or null for the end of the index
+     * @param perm READ_WRITE to insert into the gap or delete the key,
+     *   READ_ONLY to read them
+     */
+    public void lockKey(TransactionId tid, int tableId, Field key, Permissions perm)
+        throws TransactionAbortedException {
+        if (versions.snapshotOf(tid) != null)
+            return;
+        //a READ COMMITTED scan does not keep others out of its range
+        if (perm == Permissions.READ_ONLY && readCommitted.containsKey(tid))
+            return;
+        lockManager.acquireKey(tid, tableId, key, perm == Permissions.READ_WRITE);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        boolean holdsLock;
-        synchronized (pLockMap.get(p)){
-            holdsLock = pLockMap.get(p).holdsLock(tid);
-        }
-        return holdsLock;
+        return lockManager.holdsLock(tid, p);
+    }
+
+    /**
+     * Chooses how transactions that wait for each other's locks are kept from
+     * waiting forever.  The default is {@link DeadlockPolicy#DETECT_ON_WAIT}.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        lockManager.setPolicy(policy);
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return lockManager.getPolicy();
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold on one table
+     * before they are escalated to a lock on the whole table.
+     */
+    public void setLockEscalationThreshold(int pages) {
+        lockManager.setEscalationThreshold(pages);
+    }
+
+    /**
+     * Sets how long a transaction waits for a lock before it is aborted with
+     * a TransactionAbortedException.  The default, 0, waits until the lock
+     * is granted or the deadlock policy aborts the transaction.
+     *
+     * @param millis the timeout in milliseconds, or 0 for none
+     */
+    public void setLockWaitTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("negative lock wait timeout " + millis);
+        lockManager.setWaitTimeout(millis);
+    }
+
+    public long getLockWaitTimeout() {
+        return lockManager.getWaitTimeout();
+    }
+
+    /**
+     * Sets the number of locks a transaction may hold.  A transaction that
+     * needs another lock once it holds that many has its page locks
+     * escalated to table locks where possible; if it still holds too many it
+     * is aborted with a TransactionAbortedException.  The default, 0, sets
+     * no limit.
+     *
+     * @param locks the budget, or 0 for none
+     */
+    public void setLockBudget(int locks) {
+        if (locks < 0)
+            throw new IllegalArgumentException("negative lock budget " + locks);
+        lockManager.setLockBudget(locks);
+    }
+
+    public int getLockBudget() {
+        return lockManager.getLockBudget();
+    }
+
+    /** @return the lock waits, deadlocks, aborts, escalations and timeouts counted so far */
+    public LockStats getLockStats() {
+        return lockManager.getStats();
     }
 
     /**
@@ -261,31 +1050,107 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws ValidationException if an optimistic transaction that was not
+     *   validated yet fails validation; it is aborted instead
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> locked = tLockMap.get(tid);
-        tLockMap.remove(tid);
-        if (locked == null)
+        if (commit && isOptimistic(tid)) {
+            try {
+                validate(tid);
+            } catch (TransactionAbortedException | DbException e) {
+                transactionComplete(tid, false);
+                throw new ValidationException(tid, e);
+            }
+        }
+        if (isSnapshot(tid)) {
+            //a read-only snapshot locked, pinned and changed nothing
+            rings.remove(tid);
+            versions.end(tid);
             return;
-        for (PageId pid : locked){
-            Page p = cache.get(pid);
-            if (p != null && pLockMap.get(pid).isExclusive()){
-                if (commit) {
-                    if (p.isDirty() == null)
+        }
+        optimistic.remove(tid);
+        readCommitted.remove(tid);
+        LogFile log = Database.getLogFile();
+        Set<PageId> locked = lockManager.getLockedPages(tid);
+        if (commit) {
+            //the pages are forced with the COMMIT record, so transactions
+            //committing at once share a single force of the log
+            ArrayList<Page> dirty = logPages(tid);
+            if (log.isActive(tid))
+                log.logCommit(tid);
+            else
+                log.force(lastLSN(dirty));
+            writePages(tid, dirty);
+        }
+        else {
+            //undo the rows tid changed on pages shared with other row writers
+            for (Map.Entry<PageId, List<Integer>> e : rowSlots(tid).entrySet()) {
+                PageId pid = e.getKey();
+                if (lockManager.holdsExclusive(tid, pid))
+                    continue;
+                Shard shard = shardOf(pid);
+                synchronized (shard) {
+                    HeapPage p = (HeapPage) shard.pages.get(pid);
+                    if (p == null)
                         continue;
-                    flushPage(pid);
-                    p.setBeforeImage();
+                    synchronized (p) {
+                        p.restoreSlots(e.getValue());
+                    }
+                }
+            }
+            //restore the cached pages first, so none of them is stolen while dirty
+            for (PageId pid : locked) {
+                Shard shard = shardOf(pid);
+                synchronized (shard) {
+                    Page p = shard.pages.get(pid);
+                    if (p != null && lockManager.holdsExclusive(tid, pid)) {
+                        shard.pages.put(pid, p.getBeforeImage());
+                        shard.committed.remove(pid);
+                    }
+                }
+            }
+        }
+        //aborting undoes the pages stolen from tid
+        if (!commit) {
+            if (log.isActive(tid))
+                log.logAbort(tid);
+            versions.abort(tid);
+        }
+
+        rings.remove(tid);
+        List<PageId> pinned = pins.remove(tid);
+        if (pinned != null) {
+            ArrayList<PageId> unpin;
+            synchronized (pinned) {
+                unpin = new ArrayList<>(pinned);
+            }
+            for (PageId pid : unpin) {
+                Shard shard = shardOf(pid);
+                synchronized (shard) {
+                    shard.unpin(pid);
                 }
-                else
-                    cache.put(pid, p.getBeforeImage());
             }
-            synchronized (pLockMap.get(pid)) {
-                pLockMap.get(pid).releaseLock(tid);
+        }
+        if (commit) {
+            for (PageId pid : locked) {
+                Shard shard = shardOf(pid);
+                synchronized (shard) {
+                    Page p = shard.pages.get(pid);
+                    if (p != null && lockManager.holdsExclusive(tid, pid)) {
+                        p.setBeforeImage();
+                        shard.committed.remove(pid);
+                    }
+                }
             }
+            //the new before images are visible to the snapshots begun from now on
+            versions.commit(tid);
         }
+        versions.end(tid);
+        removeRowWriter(tid);
+        lockManager.releaseAll(tid);
     }
 
     /**
@@ -308,16 +1173,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> pageList = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for (Page page : pageList){
-            PageId pid = page.getId();
-            if (!cache.containsKey(pid)){
-                while (cache.size() >= numPages)
-                    evictPage();
-                cache.put(pid, page);
-            }
-            page.markDirty(true, tid);
-            //updateLRU(pid);
-        }
+        markDirtyPages(tid, pageList);
     }
 
     /**
@@ -339,28 +1195,78 @@ public class BufferPool {
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
         ArrayList<Page> pageList = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+        markDirtyPages(tid, pageList);
+    }
+
+    /**
+     * Marks the pages dirtied by tid as dirty and makes sure the cache holds
+     * those versions, so that future requests see up-to-date pages.
+     * Used by insertTuple/deleteTuple and by maintenance operations (such as
+     * BTreeFile compaction) that modify pages outside of those two calls.
+     *
+     * @param tid the transaction that dirtied the pages
+     * @param pageList the pages that were dirtied
+     */
+    void markDirtyPages(TransactionId tid, ArrayList<Page> pageList) throws DbException {
+        Optimistic occ = optimistic.get(tid);
+        if (occ != null && !occ.validated) {
+            //the pages stay private until the transaction is validated
+            for (Page page : pageList) {
+                occ.writes.putIfAbsent(page.getId(), page);
+                page.markDirty(true, tid);
+            }
+            return;
+        }
+        cachePages(tid, pageList);
+    }
+
+    /** Puts pages dirtied by tid into the cache, replacing the cached versions. */
+    private void cachePages(TransactionId tid, ArrayList<Page> pageList) throws DbException {
         for (Page page : pageList){
             PageId pid = page.getId();
-            if (!cache.containsKey(pid)){
-                while (cache.size() >= numPages)
-                    evictPage();
-                cache.put(pid, page);
+            Shard shard = shardOf(pid);
+            boolean cached;
+            synchronized (shard) {
+                cached = shard.pages.containsKey(pid);
+                if (cached) {
+                    //dirtying the cached page leaves its before image as it was
+                    if (shard.pages.put(pid, page) != page)
+                        shard.committed.remove(pid);
+                    shard.policy.recordAccess(pid);
+                }
+            }
+            if (!cached) {
+                //eviction may lock other shards, so reserve without holding this one
+                reserveFrame(shard.region, pid);
+                synchronized (shard) {
+                    if (shard.pages.put(pid, page) != null)
+                        shard.region.numCached.decrementAndGet();
+                    shard.committed.remove(pid);
+                    shard.policy.recordAccess(pid);
+                }
             }
             page.markDirty(true, tid);
-            //updateLRU(pid);
         }
     }
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Each dirty page is logged before it is written, so uncommitted data
+     * written here is undone from the log if its transaction aborts.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid : cache.keySet())
-            flushPage(pid);
+        for (Region region : pools.values()) {
+            for (Shard shard : region.shards) {
+                ArrayList<PageId> pids;
+                synchronized (shard) {
+                    pids = new ArrayList<>(shard.pages.keySet());
+                }
+                for (PageId pid : pids)
+                    flushPage(pid);
+            }
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -371,84 +1277,241 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if (!cache.containsKey(pid))
-            return;
-        /*try {
-            flushPage(pid);
-        } catch (IOException e){
-            e.printStackTrace();
-        }*/
-        cache.remove(pid);
-        //LRU.remove(pid);
+        Shard shard = shardOf(pid);
+        synchronized (shard) {
+            if (shard.frames != null)
+                shard.frames.remove(pid);
+            shard.ringPages.remove(pid);
+            shard.committed.remove(pid);
+            if (shard.pages.remove(pid) == null)
+                return;
+            ++shard.removals;
+            shard.policy.remove(pid);
+            shard.region.numCached.decrementAndGet();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.  A dirty page is logged before it is
+     * written, so the write can be undone if its transaction aborts.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = cache.get(pid);
-        if (page == null)
-            throw new IOException();
-        if (page.isDirty() == null)
-            return;
-        page.markDirty(false, null);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        writeBack(shardOf(pid), pid, false);
+    }
+
+    /**
+     * Writes a page back, logging it first if it is dirty, and evicts it if
+     * evict is set.  The record is appended under the log's monitor, but the
+     * log is forced after it is released, so the force can be shared with
+     * the transactions committing meanwhile; the page is pinned until it is
+     * written, so that nobody else evicts it.  A page changed or logged again
+     * during the force is left in the pool to be written back later.
+     */
+    private void writeBack(Shard shard, PageId pid, boolean evict) throws IOException {
+        LogFile log = Database.getLogFile();
+        Page page;
+        byte[] data;
+        long lsn;
+        synchronized (log) {
+            synchronized (shard) {
+                page = shard.pages.get(pid);
+                if (page == null || rowWriters.containsKey(pid) || (evict && shard.isPinned(pid)))
+                    return;
+                if (page.isDirty() == null) {
+                    if (evict)
+                        dropLocked(shard, pid);
+                    return;
+                }
+                Page before = page.getBeforeImage();
+                versions.keep(page.isDirty(), pid, before);
+                log.logWrite(page.isDirty(), before, page);
+                lsn = page.getLSN();
+                data = page.getPageData();
+                shard.pin(pid);
+            }
+        }
+        log.force(lsn);
+        synchronized (shard) {
+            shard.unpin(pid);
+            if (shard.pages.get(pid) != page || page.getLSN() != lsn
+                    || !Arrays.equals(page.getPageData(), data))
+                return;
+            page.markDirty(false, null);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            if (evict && !shard.isPinned(pid))
+                dropLocked(shard, pid);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        ArrayList<Page> dirty = logPages(tid);
+        Database.getLogFile().force(lastLSN(dirty));
+        writePages(tid, dirty);
+    }
+
+    /**
+     * Logs the pages tid changed, all under one hold of the log's monitor, and
+     * returns the images to write back once the log is forced up to them.
+     */
+    private ArrayList<Page> logPages(TransactionId tid) throws IOException {
+        HashMap<PageId, List<Integer>> rows = rowSlots(tid);
+        Set<PageId> locked = lockManager.getLockedPages(tid);
+        //a table lock may cover the pages of the rows, so they need not be locked
+        locked.addAll(rows.keySet());
+        LogFile log = Database.getLogFile();
+        ArrayList<Page> dirty = new ArrayList<>();
+        synchronized (log) {
+            for (PageId pid : locked) {
+                boolean exclusive = lockManager.holdsExclusive(tid, pid);
+                Shard shard = shardOf(pid);
+                synchronized (shard) {
+                    Page page = shard.pages.get(pid);
+                    if (page == null)
+                        continue;
+                    if (rows.containsKey(pid) && !exclusive) {
+                        //the page may hold other transactions' rows; only
+                        //tid's rows are committed and written
+                        HeapPage shared = (HeapPage) page;
+                        synchronized (shared) {
+                            HeapPage before = shared.getBeforeImage();
+                            versions.keep(tid, pid, before);
+                            HeapPage committed = shared.commitSlots(rows.get(pid));
+                            shard.committed.remove(pid);
+                            log.logWrite(tid, before, committed);
+                            shared.setLSN(committed.getLSN());
+                            dirty.add(committed);
+                        }
+                        continue;
+                    }
+                    //other transactions' uncommitted rows are never written
+                    if (!tid.equals(page.isDirty()) || (!exclusive && rowWriters.containsKey(pid)))
+                        continue;
+                    Page before = page.getBeforeImage();
+                    versions.keep(tid, pid, before);
+                    log.logWrite(tid, before, page);
+                    dirty.add(page);
+                }
+            }
+        }
+        return dirty;
+    }
+
+    /** @return the LSN of the last record logged for the given pages */
+    private static long lastLSN(List<Page> pages) {
+        long lsn = 0;
+        for (Page page : pages)
+            lsn = Math.max(lsn, page.getLSN());
+        return lsn;
+    }
+
+    /**
+     * Writes back the pages logPages logged for tid.  Each page is written
+     * once the log is durable up to its LSN; the caller already forced the
+     * log past them, with the COMMIT record at commit, so the check costs no
+     * force.
+     */
+    private void writePages(TransactionId tid, List<Page> dirty) throws IOException {
+        LogFile log = Database.getLogFile();
+        for (Page page : dirty) {
+            log.force(page.getLSN());
+            Shard shard = shardOf(page.getId());
+            synchronized (shard) {
+                Page cached = shard.pages.get(page.getId());
+                if (cached == page)
+                    page.markDirty(false, null);
+                //a committed row view is not the cached page, which stays dirty
+                //until its last row writer completes; a view logged later by
+                //another row writer holds tid's rows too, and is written instead
+                else if (cached != null && cached.getLSN() > page.getLSN())
+                    continue;
+                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            }
+        }
+        //tid's rows of those pages are committed and written now, so a
+        //second flush, e.g. by transactionComplete, does not log them again
+        Set<RecordId> changed = rowChanges.get(tid);
+        for (PageId pid : rowSlots(tid).keySet()) {
+            if (lockManager.holdsExclusive(tid, pid))
+                continue;
+            if (changed != null)
+                changed.removeIf(rid -> rid.getPageId().equals(pid));
+            removeRowWriter(tid, pid);
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are preferred as victims, since they are dropped without any
+     * I/O.  If every unpinned page is dirty, a dirty page is stolen: its
+     * before image is logged and the log forced before the page is written
+     * back, so that an abort can still undo it from the log.
+     * The victim is chosen from the shard of the page being added, or from the
+     * following shards of its pool if that shard has nothing to evict; the
+     * pool's capacity is shared by all its shards, so a skewed hash never fails
+     * a transaction that fits in the pool.
+     * @param region the pool to evict a page from
+     * @param start the shard to look for a victim first, i.e. the shard of
+     *   the page being added to the pool
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(Region region, int start) throws DbException {
+        Shard[] shards = region.shards;
         // some code goes here
         // not necessary for lab1
-        /*boolean flag = true;
-        Map.Entry<PageId, Integer> lru = null;
-        for (Map.Entry<PageId, Integer> cur : LRU.entrySet()){
-            if (flag){
-                lru = cur;
-                flag = false;
-            }
-            else if (lru.getValue() > cur.getValue())
-                lru = cur;
-        }
-        PageId pid = lru.getKey();
-        try {
-            flushPage(pid);
-        } catch (IOException e){
-            e.printStackTrace();
-        }
-        cache.remove(pid);
-        LRU.remove(pid);*/
-        for (Map.Entry<PageId, Page> e : cache.entrySet()){
-            PageId pid = e.getKey();
-            synchronized (cache.get(pid)) {
-                if (cache.get(pid).isDirty() == null){
-                    try {
-                        flushPage(pid);
-                    }
-                    catch (IOException err){
-                        err.printStackTrace();
-                    }
-                    cache.remove(pid);
+        for (int i = 0; i < shards.length; ++i) {
+            Shard shard = shards[(start + i) % shards.length];
+            synchronized (shard) {
+                PageId victim = shard.policy.chooseVictim(p -> {
+                    Page page = shard.pages.get(p);
+                    return page == null || (page.isDirty() == null && !shard.isPinned(p)
+                            && !rowWriters.containsKey(p));
+                });
+                if (victim != null) {
+                    dropLocked(shard, victim);
                     return;
                 }
             }
         }
-        throw new DbException("NO STEAL Policy fail");
+        for (int i = 0; i < shards.length; ++i) {
+            Shard shard = shards[(start + i) % shards.length];
+            PageId victim;
+            synchronized (shard) {
+                victim = shard.policy.chooseVictim(p -> !shard.isPinned(p) && !rowWriters.containsKey(p));
+            }
+            if (victim == null)
+                continue;
+            try {
+                writeBack(shard, victim, true);
+            } catch (IOException e) {
+                throw new DbException("could not write back page " + victim + ": " + e.getMessage());
+            }
+            //the caller retries if the page was pinned or loaded again meanwhile
+            return;
+        }
+        throw new DbException("all pages in the " + region.name + " buffer pool are pinned");
+    }
+
+    /** Removes a clean page from its shard; the caller holds the shard's lock. */
+    private void dropLocked(Shard shard, PageId victim) {
+        shard.policy.remove(victim);
+        shard.ringPages.remove(victim);
+        shard.committed.remove(victim);
+        Page page = shard.pages.remove(victim);
+        if (page != null) {
+            ++shard.removals;
+            shard.region.numCached.decrementAndGet();
+            if (shard.frames != null)
+                shard.frames.put(victim, page.getPageData());
+        }
     }
 
 }
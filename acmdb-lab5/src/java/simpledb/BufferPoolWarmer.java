@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BufferPoolWarmer keeps a small file listing the pages resident in the
+ * buffer pool, and reloads those pages after a restart, so that the pool does
+ * not have to warm up again at disk speed from the first queries.
+ * <p>
+ * The list is rewritten periodically by a recording thread.  Each entry holds
+ * the table id, the page number and, for B+ tree pages, the page category.
+ * Entries are sorted by table and page number, so that the loader reads each
+ * file front to back.  Both threads are daemons; loading stops early when the
+ * pool is full, and pages of tables that no longer exist are skipped.
+ */
+public class BufferPoolWarmer {
+    private static final int HEAP_PAGE = 0;
+    private static final int BTREE_PAGE = 1;
+
+    private final File file;
+    private Thread recorder;
+
+    /**
+     * @param file the file the resident pages are recorded in
+     */
+    public BufferPoolWarmer(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Records the pages currently resident in the buffer pool, replacing the
+     * previous list atomically.
+     */
+    public synchronized void save() throws IOException {
+        List<PageId> pages = Database.getBufferPool().getResidentPages();
+        pages.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::pageNumber));
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (PageId pid : pages) {
+                if (pid instanceof BTreePageId) {
+                    out.writeByte(BTREE_PAGE);
+                    out.writeInt(pid.getTableId());
+                    out.writeInt(pid.pageNumber());
+                    out.writeInt(((BTreePageId) pid).pgcateg());
+                }
+                else if (pid instanceof HeapPageId) {
+                    out.writeByte(HEAP_PAGE);
+                    out.writeInt(pid.getTableId());
+                    out.writeInt(pid.pageNumber());
+                }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+        }
+    }
+
+    /**
+     * Reads the recorded page list.
+     * @return the recorded pages in file order, or an empty list if nothing
+     *   was recorded yet
+     */
+    public List<PageId> load() throws IOException {
+        ArrayList<PageId> pages = new ArrayList<PageId>();
+        if (!file.exists())
+            return pages;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int tableId = in.readInt();
+                int pgNo = in.readInt();
+                if (type == BTREE_PAGE)
+                    pages.add(new BTreePageId(tableId, pgNo, in.readInt()));
+                else if (type == HEAP_PAGE)
+                    pages.add(new HeapPageId(tableId, pgNo));
+                else
+                    throw new IOException("corrupt page list " + file);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Starts a thread that records the resident pages every periodMillis
+     * milliseconds, until {@link #stopRecording} is called.
+     */
+    public synchronized void startRecording(final long periodMillis) {
+        stopRecording();
+        recorder = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(periodMillis);
+                    save();
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "buffer pool recorder");
+        recorder.setDaemon(true);
+        recorder.start();
+    }
+
+    /** Stops the recording thread, if it is running. */
+    public synchronized void stopRecording() {
+        if (recorder != null) {
+            recorder.interrupt();
+            recorder = null;
+        }
+    }
+
+    /**
+     * Starts a thread that loads the recorded pages into the buffer pool in
+     * file order.  Queries may run while it loads; join the returned thread to
+     * wait for the pool to be warm instead.
+     *
+     * @return the loading thread
+     */
+    public Thread startWarmUp() {
+        Thread loader = new Thread(() -> {
+            try {
+                warmUp();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "buffer pool warm-up");
+        loader.setDaemon(true);
+        loader.start();
+        return loader;
+    }
+
+    /**
+     * Loads the recorded pages into the buffer pool in file order, until the
+     * pool is full.
+     * @return the number of pages loaded
+     */
+    public int warmUp() throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        int loaded = 0;
+        for (PageId pid : load()) {
+            try {
+                if (!bp.prefetchPage(pid))
+                    break;
+                ++loaded;
+            } catch (NoSuchElementException | IllegalArgumentException e) {
+                // the table or page is gone since the list was recorded
+            }
+        }
+        return loaded;
+    }
+}
@@ -7,6 +7,9 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -33,6 +36,12 @@ public class Catalog {
 
     private ConcurrentHashMap<String, Integer> nameIdMap;
     private ConcurrentHashMap<Integer, Table> idTableMap;
+    // partition file id -> partition file, for the partitions of PartitionedFiles
+    private ConcurrentHashMap<Integer, DbFile> partitionMap;
+    // file id -> name of the buffer pool that caches the file's pages
+    private ConcurrentHashMap<Integer, String> bufferPools;
+    // file id -> name of the buffer pool that caches the file's B+ tree root pointer and internal pages
+    private ConcurrentHashMap<Integer, String> indexBufferPools;
 
     /**
      * Constructor.
@@ -42,6 +51,9 @@ public class Catalog {
         // some code goes here
         nameIdMap = new ConcurrentHashMap<>();
         idTableMap = new ConcurrentHashMap<>();
+        partitionMap = new ConcurrentHashMap<>();
+        bufferPools = new ConcurrentHashMap<>();
+        indexBufferPools = new ConcurrentHashMap<>();
     }
 
     /**
@@ -51,18 +63,72 @@ public class Catalog {
      *    this file/tupledesc param for the calls getTupleDesc and getFile
      * @param name the name of the table -- may be an empty string.  May not be null.  If a name
      * conflict exists, use the last table to be added as the table for a given name.
+     * If file is a {@link PartitionedFile}, its partition files are registered too, so that
+     * their pages can be found with getDatabaseFile, but they are not tables of their own.
      * @param pkeyField the name of the primary key field
+     * @throws IllegalArgumentException if file is a partition of another table, or one of
+     * the partitions of file is another table or a partition of one
      */
-    public void addTable(DbFile file, String name, String pkeyField) {
+    public synchronized void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
         Integer oldId = nameIdMap.get(name);
-        if (oldId != null)
-            idTableMap.remove(oldId);
+        //the tables this one replaces, by name or by id
+        HashSet<DbFile> replaced = new HashSet<>();
+        for (Integer id : new Integer[] { oldId, file.getId() }) {
+            Table table = id == null ? null : idTableMap.get(id);
+            if (table != null)
+                replaced.add(table.file);
+        }
+        if (partitionMap.containsKey(file.getId()) && !isPartitionOf(file.getId(), replaced))
+            throw new IllegalArgumentException("table id " + file.getId() + " is the id of a partition");
+        if (file instanceof PartitionedFile) {
+            PartitionedFile pf = (PartitionedFile) file;
+            HashSet<Integer> ids = new HashSet<>();
+            ids.add(pf.getId());
+            for (int i = 0; i < pf.numPartitions(); ++i) {
+                int id = pf.getPartition(i).getId();
+                Table table = idTableMap.get(id);
+                if (!ids.add(id) || (table != null && !replaced.contains(table.file))
+                        || (partitionMap.containsKey(id) && !isPartitionOf(id, replaced)))
+                    throw new IllegalArgumentException("partition id " + id + " is already in use");
+            }
+        }
+        for (DbFile table : replaced) {
+            idTableMap.remove(table.getId());
+            removePartitions(table);
+        }
+        if (file instanceof PartitionedFile) {
+            PartitionedFile pf = (PartitionedFile) file;
+            for (int i = 0; i < pf.numPartitions(); ++i)
+                partitionMap.put(pf.getPartition(i).getId(), pf.getPartition(i));
+        }
         Integer id = file.getId();
         idTableMap.put(id, new Table(file, name, pkeyField));
         nameIdMap.put(name, id);
     }
 
+    /** @return true if id is the id of a partition of one of the given tables */
+    private static boolean isPartitionOf(int id, Set<DbFile> tables) {
+        for (DbFile table : tables) {
+            if (!(table instanceof PartitionedFile))
+                continue;
+            PartitionedFile pf = (PartitionedFile) table;
+            for (int i = 0; i < pf.numPartitions(); ++i) {
+                if (pf.getPartition(i).getId() == id)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void removePartitions(DbFile table) {
+        if (table instanceof PartitionedFile) {
+            PartitionedFile pf = (PartitionedFile) table;
+            for (int i = 0; i < pf.numPartitions(); ++i)
+                partitionMap.remove(pf.getPartition(i).getId());
+        }
+    }
+
     public void addTable(DbFile file, String name) {
         addTable(file, name, "");
     }
@@ -100,24 +166,25 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        Table table = idTableMap.get(tableid);
-        if (table == null)
-            throw new NoSuchElementException();
-        else return table.file.getTupleDesc();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
      * Returns the DbFile that can be used to read the contents of the
      * specified table.
      * @param tableid The id of the table, as specified by the DbFile.getId()
-     *     function passed to addTable
+     *     function passed to addTable, or the id of a partition of a
+     *     partitioned table
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
         Table table = idTableMap.get(tableid);
-        if (table == null)
+        if (table != null)
+            return table.file;
+        DbFile partition = partitionMap.get(tableid);
+        if (partition == null)
             throw new NoSuchElementException();
-        else return table.file;
+        else return partition;
     }
 
     public String getPrimaryKey(int tableid) {
@@ -146,10 +213,86 @@ public class Catalog {
         // some code goes here
         nameIdMap.clear();
         idTableMap.clear();
+        partitionMap.clear();
+        bufferPools.clear();
+        indexBufferPools.clear();
+    }
+
+    /**
+     * Assigns a table to a named pool of the buffer pool, so that its pages
+     * only compete for frames with the other tables of that pool.  The
+     * partitions of a partitioned table are assigned with it.  Tables should
+     * be assigned before they are used: pages cached under the old assignment
+     * are not moved.
+     *
+     * @param tableid the id of the table
+     * @param pool the name of the pool, or null for the default pool
+     * @see BufferPool#addPool
+     */
+    public void setBufferPool(int tableid, String pool) {
+        assignPool(bufferPools, tableid, pool);
+    }
+
+    /**
+     * Assigns the root pointer and internal pages of a B+ tree table to a
+     * named pool of the buffer pool; its leaf and header pages stay in the
+     * table's own pool.
+     *
+     * @param tableid the id of the table
+     * @param pool the name of the pool, or null for the table's own pool
+     */
+    public void setIndexBufferPool(int tableid, String pool) {
+        assignPool(indexBufferPools, tableid, pool);
+    }
+
+    private void assignPool(ConcurrentHashMap<Integer, String> pools, int tableid, String pool) {
+        DbFile file = getDatabaseFile(tableid);
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        ids.add(tableid);
+        if (file instanceof PartitionedFile) {
+            PartitionedFile pf = (PartitionedFile) file;
+            for (int i = 0; i < pf.numPartitions(); ++i)
+                ids.add(pf.getPartition(i).getId());
+        }
+        for (int id : ids) {
+            if (pool == null)
+                pools.remove(id);
+            else pools.put(id, pool);
+        }
+    }
+
+    /**
+     * @return the name of the buffer pool the page is assigned to, or null if
+     *   it belongs to the default pool
+     */
+    public String getBufferPoolName(PageId pid) {
+        if (pid instanceof BTreePageId) {
+            int categ = ((BTreePageId) pid).pgcateg();
+            if (categ == BTreePageId.ROOT_PTR || categ == BTreePageId.INTERNAL) {
+                String pool = indexBufferPools.get(pid.getTableId());
+                if (pool != null)
+                    return pool;
+            }
+        }
+        return getBufferPoolName(pid.getTableId());
+    }
+
+    /**
+     * @return the name of the buffer pool the data pages of the table are
+     *   assigned to, or null if they belong to the default pool
+     */
+    public String getBufferPoolName(int tableid) {
+        return bufferPools.get(tableid);
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line has the format <tt>name (field type [pk], ...)</tt>, optionally followed by
+     * <tt>partition by hash(field, n)</tt> or <tt>partition by range(field, bound, ...)</tt>.
+     * Partition i of table name is stored in name_i.dat.
+     * A table may be assigned to a named buffer pool with <tt>pool name</tt>, and the internal
+     * pages of a B+ tree table with <tt>index pool name</tt>.  Pools are declared by lines
+     * of the format <tt>pool name pages [clock|2q]</tt> before the tables that use them.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -159,10 +302,24 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
+                if (line.indexOf("(") < 0 && line.trim().toLowerCase().startsWith("pool ")) {
+                    addBufferPool(line.trim().split("\\s+"));
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String partitioning = line.substring(line.indexOf(")") + 1).trim();
+                String pool = null;
+                String indexPool = null;
+                Matcher poolMatcher = POOL_CLAUSE.matcher(partitioning);
+                while (poolMatcher.find()) {
+                    if (poolMatcher.group(1) == null)
+                        pool = poolMatcher.group(2);
+                    else indexPool = poolMatcher.group(2);
+                }
+                partitioning = poolMatcher.replaceAll("").trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -190,17 +347,86 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                DbFile tabHf;
+                if (partitioning.isEmpty())
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                else
+                    tabHf = loadPartitionedFile(baseFolder, name, t, partitioning);
                 addTable(tabHf,name,primaryKey);
+                if (pool != null)
+                    setBufferPool(tabHf.getId(), pool);
+                if (indexPool != null)
+                    setIndexBufferPool(tabHf.getId(), indexPool);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
     }
-}
 
+    private static final Pattern POOL_CLAUSE =
+            Pattern.compile("(?i)\\b(index\\s+)?pool\\s+(\\w+)");
+
+    /** Adds the pool declared by a schema line <tt>pool name pages [clock|2q]</tt> */
+    private void addBufferPool(String[] words) {
+        String name = words[1];
+        int pages = Integer.parseInt(words[2]);
+        IntFunction<ReplacementPolicy> policy = ClockPolicy::new;
+        if (words.length > 3) {
+            if (words[3].equalsIgnoreCase("2q"))
+                policy = TwoQueuePolicy::new;
+            else if (!words[3].equalsIgnoreCase("clock")) {
+                System.out.println("Unknown replacement policy " + words[3]);
+                System.exit(0);
+            }
+        }
+        BufferPool bp = Database.getBufferPool();
+        try {
+            if (bp.getPoolNames().contains(name))
+                bp.resize(name, pages);
+            else bp.addPool(name, pages, policy);
+        } catch (DbException e) {
+            System.out.println("Could not resize buffer pool " + name + ": " + e.getMessage());
+        }
+        System.out.println("Added buffer pool : " + name + " with " + pages + " pages");
+    }
+
+    private PartitionedFile loadPartitionedFile(String baseFolder, String name, TupleDesc td,
+                                                String partitioning) {
+        String lower = partitioning.toLowerCase();
+        if (!lower.startsWith("partition by ") || !partitioning.endsWith(")"))
+            throw new IndexOutOfBoundsException();
+        String kind = lower.substring("partition by ".length(), lower.indexOf("(")).trim();
+        String[] args = partitioning.substring(partitioning.indexOf("(") + 1,
+                partitioning.length() - 1).split(",");
+        int field = td.fieldNameToIndex(args[0].trim());
+        PartitionedFile.Scheme scheme;
+        int numPartitions;
+        if (kind.equals("hash")) {
+            numPartitions = Integer.parseInt(args[1].trim());
+            scheme = new PartitionedFile.HashScheme(numPartitions);
+        } else if (kind.equals("range")) {
+            Field[] bounds = new Field[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                if (td.getFieldType(field) == Type.INT_TYPE)
+                    bounds[i - 1] = new IntField(Integer.parseInt(args[i].trim()));
+                else
+                    bounds[i - 1] = new StringField(args[i].trim(), Type.STRING_LEN);
+            }
+            numPartitions = bounds.length + 1;
+            scheme = new PartitionedFile.RangeScheme(bounds);
+        } else {
+            System.out.println("Unknown partitioning " + kind);
+            System.exit(0);
+            return null;
+        }
+        DbFile[] partitions = new DbFile[numPartitions];
+        for (int i = 0; i < numPartitions; ++i)
+            partitions[i] = new HeapFile(new File(baseFolder+"/"+name + "_" + i + ".dat"), td);
+        return new PartitionedFile(new File(baseFolder+"/"+name + ".dat"), partitions, field, scheme);
+    }
+}
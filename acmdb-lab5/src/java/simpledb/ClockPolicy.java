@@ -0,0 +1,71 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement.  Pages sit in a circular array of
+ * frames, each with a reference bit that is set on every access.  The clock
+ * hand sweeps the frames, clearing set bits and choosing the first page whose
+ * bit is already clear, so both accesses and evictions are O(1) amortized.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private final ArrayList<PageId> frames;
+    private final ArrayList<Boolean> referenced;
+    private final HashMap<PageId, Integer> frameOf;
+    private final ArrayList<Integer> freeFrames;
+    private int hand = 0;
+
+    /**
+     * @param capacity the expected number of pages, used to size the frame
+     *   array; more pages are accepted
+     */
+    public ClockPolicy(int capacity) {
+        frames = new ArrayList<PageId>(capacity);
+        referenced = new ArrayList<Boolean>(capacity);
+        frameOf = new HashMap<PageId, Integer>();
+        freeFrames = new ArrayList<Integer>();
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                frame = frames.size();
+                frames.add(pid);
+                referenced.add(true);
+            } else {
+                frame = freeFrames.remove(freeFrames.size() - 1);
+                frames.set(frame, pid);
+            }
+            frameOf.put(pid, frame);
+        }
+        referenced.set(frame, true);
+    }
+
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        frames.set(frame, null);
+        referenced.set(frame, false);
+        freeFrames.add(frame);
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        // two full turns: the first one may only clear reference bits
+        for (int i = 0; i < 2 * frames.size(); ++i) {
+            if (hand >= frames.size())
+                hand = 0;
+            int frame = hand++;
+            PageId pid = frames.get(frame);
+            if (pid == null)
+                continue;
+            if (referenced.get(frame))
+                referenced.set(frame, false);
+            else if (candidates.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -19,6 +19,17 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Build the specified page from bytes previously returned by its
+     * {@link Page#getPageData}, without reading from disk.  Used by the
+     * buffer pool to restore pages kept in its off-heap frame store.
+     *
+     * @return the page, or null if this file cannot build pages from bytes
+     */
+    public default Page createPage(PageId id, byte[] data) throws IOException {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
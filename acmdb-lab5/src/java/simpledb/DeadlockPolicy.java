@@ -0,0 +1,33 @@
+package simpledb;
+
+/**
+ * How the lock manager keeps transactions that wait for each other's locks
+ * from waiting forever.
+ *
+ * @see BufferPool#setDeadlockPolicy
+ */
+public enum DeadlockPolicy {
+    /**
+     * Search the waits-for graph for a cycle before each request waits, and
+     * abort the requester if it would close one.  Deadlocks are broken at
+     * once, at the price of a graph search per wait.
+     */
+    DETECT_ON_WAIT,
+    /**
+     * Let requests wait unchecked; a background thread searches the
+     * waits-for graph periodically while transactions wait, and aborts the
+     * transaction in each cycle that holds the fewest locks, the youngest
+     * one among equals.
+     */
+    DETECTOR,
+    /**
+     * An older transaction waits for younger ones; a younger transaction
+     * that would wait for an older one is aborted instead.  Needs no graph.
+     */
+    WAIT_DIE,
+    /**
+     * An older transaction aborts the younger ones it would wait for; a
+     * younger transaction waits for older ones.  Needs no graph.
+     */
+    WOUND_WAIT
+}
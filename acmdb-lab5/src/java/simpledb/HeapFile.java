@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -24,6 +25,8 @@ public class HeapFile implements DbFile {
      */
     private File f;
     private TupleDesc td;
+    // page number -> number of tuples on the page, as last seen by this file
+    private final ConcurrentHashMap<Integer, Integer> occupancy = new ConcurrentHashMap<>();
 
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
@@ -84,6 +87,14 @@ public class HeapFile implements DbFile {
         } catch (IOException e){
             throw new IllegalArgumentException();
         }
+        recordOccupancy(pg);
+        return pg;
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        HeapPage pg = new HeapPage((HeapPageId) pid, data);
+        recordOccupancy(pg);
         return pg;
     }
 
@@ -117,6 +128,8 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (Database.getBufferPool().isRowLocking(getId()))
+            return insertTupleRowLocked(tid, t);
         for (int i = 0; i < numPages(); ++i){
             HeapPageId pid = new HeapPageId(getId(), i);
             HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
@@ -126,12 +139,25 @@ public class HeapFile implements DbFile {
             }
             p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
             p.insertTuple(t);
+            recordOccupancy(p);
             return new ArrayList<>(Collections.singletonList(p));
         }
-        HeapPageId pid = new HeapPageId(getId(), numPages());
-        HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
-        p.insertTuple(t);
-        writePage(p);
+        HeapPage p;
+        //appending races with vacuum truncating the file
+        synchronized (this) {
+            HeapPageId pid = new HeapPageId(getId(), numPages());
+            p = new HeapPage(pid, HeapPage.createEmptyPageData());
+            //an optimistic transaction keeps its tuple private until it commits
+            if (Database.getBufferPool().isOptimistic(tid)) {
+                writePage(p);
+                p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                p.insertTuple(t);
+            } else {
+                p.insertTuple(t);
+                writePage(p);
+            }
+        }
+        recordOccupancy(p);
         return new ArrayList<>(Collections.singletonList(p));
     }
 
@@ -141,11 +167,260 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         PageId pid = t.getRecordId().getPageId();
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        BufferPool bp = Database.getBufferPool();
+        if (bp.isRowLocking(getId())){
+            bp.lockRow(tid, t.getRecordId(), Permissions.READ_WRITE);
+            HeapPage p = (HeapPage) bp.pinRowPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                synchronized (p) {
+                    p.deleteTuple(t);
+                    recordOccupancy(p);
+                }
+            } finally {
+                bp.unpinPage(tid, pid);
+            }
+            return new ArrayList<>(Collections.singletonList(p));
+        }
+        HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
         p.deleteTuple(t);
+        recordOccupancy(p);
         return new ArrayList<>(Collections.singletonList(p));
     }
 
+    /**
+     * Inserts a tuple under row locking: into the first slot that is free
+     * both on its page and in the page's before image and that no other
+     * transaction has locked, appending an empty page if there is none.
+     * Pages that looked full when last seen are skipped.
+     */
+    private ArrayList<Page> insertTupleRowLocked(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        int slots = HeapPage.getNumSlots(td);
+        for (int i = 0; ; ++i){
+            if (i >= numPages()){
+                //appending races with vacuum truncating the file
+                synchronized (this) {
+                    if (i == numPages())
+                        writePage(new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData()));
+                }
+            }
+            if (getPageOccupancy(i) == slots)
+                continue;
+            HeapPageId pid = new HeapPageId(getId(), i);
+            HeapPage p = (HeapPage) bp.pinRowPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                synchronized (p) {
+                    for (int slot = 0; slot < slots; ++slot){
+                        if (p.isSlotFree(slot) && bp.tryLockRow(tid, new RecordId(pid, slot))){
+                            p.insertTuple(t, slot);
+                            recordOccupancy(p);
+                            return new ArrayList<>(Collections.singletonList(p));
+                        }
+                    }
+                    recordOccupancy(p);
+                }
+            } finally {
+                bp.unpinPage(tid, pid);
+            }
+        }
+    }
+
+    private void recordOccupancy(HeapPage p) {
+        occupancy.put(p.getId().pageNumber(), p.getNumUsedSlots());
+    }
+
+    /**
+     * Returns the number of tuples on the specified page, as recorded the last
+     * time this file read or modified the page.  A page that has not been seen
+     * yet is counted from its copy in the buffer pool, or else read from disk,
+     * without locking it; the count is recorded for the next call.
+     * The value is only a hint unless the caller holds a lock on the page.
+     *
+     * @param pgNo the page number
+     * @return the number of tuples on the page
+     */
+    public int getPageOccupancy(int pgNo) {
+        Integer used = occupancy.get(pgNo);
+        if (used != null)
+            return used;
+        //the copy of the page in the buffer pool may be newer than the disk
+        HeapPageId pid = new HeapPageId(getId(), pgNo);
+        HeapPage p = (HeapPage) Database.getBufferPool().getCachedPage(pid);
+        if (p == null)
+            p = (HeapPage) readPage(pid);
+        else
+            recordOccupancy(p);
+        return p.getNumUsedSlots();
+    }
+
+    /**
+     * Callback used by {@link #vacuum} to tell structures that refer to tuples
+     * by RecordId (such as secondary indexes) that a tuple has moved.  It is
+     * called inside the transaction that moves the tuple, so its updates
+     * commit or abort together with the move.
+     */
+    public interface TupleMoveListener {
+        void tupleMoved(TransactionId tid, RecordId oldRid, Tuple t)
+                throws DbException, IOException, TransactionAbortedException;
+    }
+
+    /**
+     * Vacuum this file: move the tuples of the emptiest pages into fuller
+     * pages, then move the tuples on the last pages into free space nearer the
+     * start of the file, and finally truncate the empty pages at the end of the
+     * file.  Each page is evacuated in its own short transaction.
+     *
+     * @param listener notified of every tuple that moves; may be null
+     * @return the number of pages removed from the file
+     */
+    public int vacuum(TupleMoveListener listener) throws DbException, IOException {
+        int before = numPages();
+        while (Transaction.runWithRetry(tid -> packEmptiestPage(tid, listener)));
+        while (Transaction.runWithRetry(tid -> evacuateLastPage(tid, listener)));
+        Transaction.runWithRetry(this::truncateEmptyPages);
+        return before - numPages();
+    }
+
+    /**
+     * Move all tuples of the non-empty page with the fewest tuples into the
+     * fullest pages that still have room.
+     * @return true if a page was emptied
+     */
+    boolean packEmptiestPage(TransactionId tid, TupleMoveListener listener)
+            throws DbException, IOException, TransactionAbortedException {
+        int slots = HeapPage.getNumSlots(td);
+        int[] used = new int[numPages()];
+        int source = -1;
+        int free = 0;
+        ArrayList<Integer> pages = new ArrayList<>();
+        for (int i = 0; i < used.length; ++i){
+            used[i] = getPageOccupancy(i);
+            if (used[i] == 0)
+                continue;
+            pages.add(i);
+            free += slots - used[i];
+            if (source == -1 || used[i] <= used[source])
+                source = i;
+        }
+        if (source == -1)
+            return false;
+        int moving = used[source];
+        //the rest of the non-empty pages must be able to absorb the source page
+        if (free - (slots - moving) < moving)
+            return false;
+        pages.remove(Integer.valueOf(source));
+        pages.sort((a, b) -> used[b] - used[a]);
+        return moveTuples(tid, source, pages, listener);
+    }
+
+    /**
+     * Move all tuples of the last non-empty page into free space on pages
+     * before it, lowest page numbers first.
+     * @return true if a page was emptied
+     */
+    boolean evacuateLastPage(TransactionId tid, TupleMoveListener listener)
+            throws DbException, IOException, TransactionAbortedException {
+        int slots = HeapPage.getNumSlots(td);
+        int last = numPages() - 1;
+        while (last >= 0 && getPageOccupancy(last) == 0)
+            --last;
+        if (last < 0)
+            return false;
+        int moving = getPageOccupancy(last);
+        ArrayList<Integer> pages = new ArrayList<>();
+        int free = 0;
+        for (int i = 0; i < last && free < moving; ++i){
+            int pageFree = slots - getPageOccupancy(i);
+            if (pageFree > 0){
+                pages.add(i);
+                free += pageFree;
+            }
+        }
+        if (free < moving)
+            return false;
+        return moveTuples(tid, last, pages, listener);
+    }
+
+    /**
+     * Move the tuples on page source to the pages in destinations, in order.
+     * @return true if page source ended up empty
+     */
+    private boolean moveTuples(TransactionId tid, int source, List<Integer> destinations,
+                               TupleMoveListener listener)
+            throws DbException, IOException, TransactionAbortedException {
+        int slots = HeapPage.getNumSlots(td);
+        HeapPage src = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(getId(), source), Permissions.READ_WRITE, BufferPool.AccessStrategy.BULK_WRITE);
+        LinkedHashSet<HeapPage> dirtied = new LinkedHashSet<>();
+        Iterator<Integer> destIt = destinations.iterator();
+        HeapPage dest = null;
+        boolean emptied = true;
+        for (Iterator<Tuple> it = src.iterator(); it.hasNext(); ){
+            Tuple t = it.next();
+            while (dest == null || dest.getNumUsedSlots() == slots){
+                dest = destIt.hasNext() ? (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(getId(), destIt.next()), Permissions.READ_WRITE,
+                        BufferPool.AccessStrategy.BULK_WRITE) : null;
+                if (dest == null)
+                    break;
+            }
+            if (dest == null){
+                //the occupancy hints were stale, keep what we moved so far
+                emptied = false;
+                break;
+            }
+            Tuple moved = new Tuple(td);
+            for (int i = 0; i < td.numFields(); ++i)
+                moved.setField(i, t.getField(i));
+            RecordId oldRid = t.getRecordId();
+            src.deleteTuple(t);
+            dest.insertTuple(moved);
+            dirtied.add(src);
+            dirtied.add(dest);
+            if (listener != null)
+                listener.tupleMoved(tid, oldRid, moved);
+        }
+        Database.getBufferPool().markDirtyPages(tid, new ArrayList<Page>(dirtied));
+        recordOccupancy(src);
+        for (HeapPage p : dirtied)
+            recordOccupancy(p);
+        return emptied;
+    }
+
+    /**
+     * Remove the empty pages at the end of this file (the first page is always
+     * kept).  The pages are locked first, so no transaction is using them.
+     * @return the number of pages removed
+     */
+    int truncateEmptyPages(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        int oldNumPages = numPages();
+        int newNumPages = oldNumPages;
+        while (newNumPages > 1 && getPageOccupancy(newNumPages - 1) == 0)
+            --newNumPages;
+        for (int i = newNumPages; i < oldNumPages; ++i){
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            if (p.getNumUsedSlots() > 0){
+                recordOccupancy(p);
+                return 0;
+            }
+        }
+        synchronized (this) {
+            if (newNumPages == oldNumPages || numPages() != oldNumPages)
+                return 0;
+            for (int i = newNumPages; i < oldNumPages; ++i){
+                Database.getBufferPool().discardPage(new HeapPageId(getId(), i));
+                occupancy.remove(i);
+            }
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.setLength((long) newNumPages * BufferPool.getPageSize());
+            raf.close();
+        }
+        return oldNumPages - newNumPages;
+    }
+
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
@@ -153,13 +428,58 @@ public class HeapFile implements DbFile {
         return new DbFileIterator() {
             private int curPgNo = 0;
             private Iterator<Tuple> tupleIterator;
+            private BufferPool.AccessStrategy strategy;
+            //the page being read, pinned so that it is not evicted under the iterator
+            private PageId pinned;
+
+            private Iterator<Tuple> readPage(int pgNo) throws DbException, TransactionAbortedException {
+                unpin();
+                PageId pid = new HeapPageId(getId(), pgNo);
+                BufferPool bp = Database.getBufferPool();
+                if (bp.isRowLocking(getId())){
+                    //lock every tuple on the page or in its before image, then
+                    //read the ones that are still there
+                    HeapPage pg = (HeapPage) bp.pinRowPage(tid, pid, Permissions.READ_ONLY);
+                    pinned = pid;
+                    ArrayList<Integer> slots = new ArrayList<>();
+                    synchronized (pg) {
+                        for (int i = 0; i < HeapPage.getNumSlots(td); ++i)
+                            if (!pg.isSlotFree(i))
+                                slots.add(i);
+                    }
+                    for (int slot : slots)
+                        bp.lockRow(tid, new RecordId(pid, slot), Permissions.READ_ONLY);
+                    ArrayList<Tuple> tuples = new ArrayList<>();
+                    synchronized (pg) {
+                        for (int slot : slots){
+                            Tuple t = pg.getTuple(slot);
+                            if (t != null)
+                                tuples.add(t);
+                        }
+                    }
+                    return tuples.iterator();
+                }
+                HeapPage pg = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_ONLY, strategy);
+                pinned = pid;
+                return pg.iterator();
+            }
+
+            private void unpin() {
+                if (pinned != null)
+                    Database.getBufferPool().unpinPage(tid, pinned);
+                pinned = null;
+            }
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 curPgNo = 0;
-                PageId pid = new HeapPageId(getId(), curPgNo);
-                HeapPage curPg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                tupleIterator = curPg.iterator();
+                //a new file (e.g. an empty partition) has no pages yet
+                if (numPages() == 0){
+                    tupleIterator = Collections.emptyIterator();
+                    return;
+                }
+                strategy = Database.getBufferPool().scanStrategy(getId(), numPages());
+                tupleIterator = readPage(curPgNo);
             }
 
             @Override
@@ -168,9 +488,7 @@ public class HeapFile implements DbFile {
                     return false;
                 while (!tupleIterator.hasNext() && curPgNo + 1 < numPages()){
                     ++curPgNo;
-                    PageId pid = new HeapPageId(getId(), curPgNo);
-                    HeapPage nxtPg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                    tupleIterator = nxtPg.iterator();
+                    tupleIterator = readPage(curPgNo);
                 }
                 //new page may have no nxt
                 return tupleIterator.hasNext();
@@ -200,6 +518,7 @@ public class HeapFile implements DbFile {
 
             @Override
             public void close() {
+                unpin();
                 tupleIterator = null;
                 curPgNo = 0;
             }
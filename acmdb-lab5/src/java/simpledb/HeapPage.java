@@ -20,9 +20,10 @@ public class HeapPage implements Page {
     final int numSlots;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
 
     TransactionId dirtyTid = null;
+    private volatile long lsn = 0;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -69,8 +70,17 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {
         // some code goes here
-        return BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        return getNumSlots(td);
+
+    }
 
+    /**
+     * Computes the number of tuple slots on a HeapPage of a table with the given schema.
+     * @param td the schema of the table
+     * @return the number of tuple slots per page
+     */
+    static int getNumSlots(TupleDesc td) {
+        return BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
     }
 
     /**
@@ -276,6 +286,71 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Returns true if slot i is empty both on this page and in its before
+     * image.  Under row locking, inserts only use such slots, so that undoing
+     * another transaction's uncommitted delete never finds its slot taken.
+     */
+    boolean isSlotFree(int i) {
+        if (isSlotUsed(i))
+            return false;
+        synchronized (oldDataLock) {
+            return (oldData[i / 8] & (1 << (i % 8))) == 0;
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the given empty slot.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (isSlotUsed(slot))
+            throw new DbException("slot " + slot + " is not empty");
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("the tuple Desc does not match the page");
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+    }
+
+    /**
+     * Returns the tuple in slot i, or null if the slot is empty.
+     */
+    Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tuples[i] : null;
+    }
+
+    /**
+     * Undoes the changes to the given slots, restoring them from the before
+     * image.  Used to abort a transaction that updated rows of a page that
+     * other transactions are updating too.
+     */
+    void restoreSlots(Collection<Integer> slots) {
+        HeapPage before = getBeforeImage();
+        for (int slot : slots) {
+            tuples[slot] = before.tuples[slot];
+            markSlotUsed(slot, before.isSlotUsed(slot));
+        }
+    }
+
+    /**
+     * Commits the changes to the given slots: applies them to the before
+     * image, which becomes the new before image, leaving the changes of other
+     * transactions to the rest of the slots out of it.
+     *
+     * @return the committed page, i.e. the new before image
+     */
+    HeapPage commitSlots(Collection<Integer> slots) {
+        HeapPage committed = getBeforeImage();
+        for (int slot : slots) {
+            committed.tuples[slot] = tuples[slot];
+            committed.markSlotUsed(slot, isSlotUsed(slot));
+        }
+        synchronized (oldDataLock) {
+            oldData = committed.getPageData();
+        }
+        return committed;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -297,18 +372,30 @@ public class HeapPage implements Page {
         return dirtyTid;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int cnt = 0;
-        for (byte b : header){
-            int r = ~b & 0xFF;
-            for (; r != 0; r >>>= 1)
-                cnt += r & 0x1;
-        }
-        return cnt;
+        int used = 0;
+        for (byte b : header)
+            used += Integer.bitCount(b & 0xFF);
+        return numSlots - used;
+    }
+
+    /**
+     * Returns the number of slots on this page that hold a tuple.
+     */
+    public int getNumUsedSlots() {
+        return numSlots - getNumEmptySlots();
     }
 
     /**
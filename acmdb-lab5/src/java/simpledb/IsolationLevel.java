@@ -0,0 +1,21 @@
+package simpledb;
+
+/**
+ * How much a locking transaction is isolated from concurrent ones.
+ *
+ * @see Transaction#setIsolationLevel
+ * @see BufferPool#setIsolationLevel
+ */
+public enum IsolationLevel {
+    /**
+     * Hold every lock until the transaction completes (strict two-phase
+     * locking), and lock the key ranges index scans read.  The default.
+     */
+    SERIALIZABLE,
+    /**
+     * Read only committed data, but release the read locks on a page as soon
+     * as the iterator reading it leaves the page; a later read may see data
+     * committed meanwhile.  Locks for updates are still held to the end.
+     */
+    READ_COMMITTED
+}
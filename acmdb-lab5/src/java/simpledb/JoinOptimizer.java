@@ -255,6 +255,9 @@ public class JoinOptimizer {
             }
 
         }
+        //single-table queries have nothing to order
+        if (joins.isEmpty())
+            return joins;
         return planCache.getOrder(new HashSet<>(joins));
     }
 
@@ -0,0 +1,860 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager grants the locks of the BufferPool.
+ * <p>
+ * Locks are taken at three granularities: a transaction locks a table in an
+ * intention mode (IS to read, IX to write) before it locks a page of the
+ * table in S or X mode.  Tables that use row locking lock the page in the
+ * intention mode as well, and then the tuple, by its RecordId, in S or X
+ * mode, so that transactions updating different tuples of a page do not
+ * wait for each other.  B+ tree indexes also lock keys, under the intention
+ * lock on the table: a key lock covers the key and the gap before it, so an
+ * index scan that locks the keys it reads and the key past its range keeps
+ * inserts out of the range (next-key locking).
+ * <p>
+ * Once a transaction holds more than the escalation threshold of page locks
+ * on one table, its table lock is escalated to S (or SIX if it also writes
+ * the table) when that can be granted right away, and its shared page locks
+ * on the table are dropped; the table lock covers the pages it reads from
+ * then on, so a scan holds a constant number of locks.  Exclusive page locks
+ * are never escalated, since they are the record of the pages a transaction
+ * dirtied.
+ * <p>
+ * Each locked object has a FIFO queue of waiting requests.  A request that
+ * cannot be granted sleeps on its own condition until a release grants it,
+ * so waiting transactions use no CPU.  Requests are granted in arrival order
+ * and a new request never overtakes a waiting one, so a stream of readers
+ * cannot starve a writer.  The only exception is a lock upgrade, which goes
+ * to the head of the queue, since the upgrading transaction already holds a
+ * lock that everyone behind it waits for anyway.
+ * <p>
+ * Deadlocks are handled as chosen by the {@link DeadlockPolicy}: by
+ * searching the waits-for graph before each wait, by a background detector
+ * that runs while transactions wait, or by comparing transaction ages
+ * (wait-die and wound-wait).  An aborted request is withdrawn from its queue
+ * and its transaction gets a TransactionAbortedException.
+ * <p>
+ * Two optional limits bound how long a transaction can hold up a worker: a
+ * lock wait timeout, after which a request that was not granted is aborted
+ * like a deadlock victim, and a lock budget, the number of locks one
+ * transaction may hold.  A transaction that reaches its budget has its page
+ * locks escalated to table locks where that is possible, and is aborted
+ * when it still holds too many.
+ *
+ * @Threadsafe
+ */
+class LockManager {
+    /** Milliseconds between two searches of the background detector. */
+    static final long DETECTOR_PERIOD = 50;
+
+    /** Default number of page locks on one table past which a transaction escalates. */
+    static final int ESCALATION_THRESHOLD = 256;
+
+    /** The lock modes, from weakest to strongest. */
+    enum Mode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //          IS     IX     S      SIX    X
+                /* IS  */ { true,  true,  true,  true,  false },
+                /* IX  */ { true,  true,  false, false, false },
+                /* S   */ { true,  false, true,  false, false },
+                /* SIX */ { true,  false, false, false, false },
+                /* X   */ { false, false, false, false, false },
+        };
+
+        boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** Return true if holding this mode implies holding other. */
+        boolean covers(Mode other) {
+            switch (this) {
+            case X: return true;
+            case SIX: return other != X;
+            case S: return other == S || other == IS;
+            case IX: return other == IX || other == IS;
+            default: return other == IS;
+            }
+        }
+
+        /** @return the weakest mode that covers both this mode and other */
+        Mode join(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            //the only incomparable pair is S and IX
+            return SIX;
+        }
+    }
+
+    /** The lock on a whole table, as opposed to one of its pages or tuples. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** The lock on a key of an index and the gap before it; a null key is the end of the index. */
+    private static final class IndexKey {
+        final int tableId;
+        final Field key;
+
+        IndexKey(int tableId, Field key) {
+            this.tableId = tableId;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexKey))
+                return false;
+            IndexKey other = (IndexKey) o;
+            //fields do not compare to null
+            return other.tableId == tableId
+                    && (key == null ? other.key == null : other.key != null && key.equals(other.key));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tableId + Objects.hashCode(key);
+        }
+
+        @Override
+        public String toString() {
+            return "key " + (key == null ? "end" : key) + " of table " + tableId;
+        }
+    }
+
+    /** A lock request, queued until it is granted. */
+    private static class Request {
+        final TransactionId tid;
+        final Object key;
+        //the mode tid holds once the request is granted
+        final Mode mode;
+        final Condition granted;
+        boolean isGranted;
+        boolean isAborted;
+
+        Request(TransactionId tid, Object key, Mode mode, Condition granted) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.granted = granted;
+        }
+    }
+
+    /** The holders and waiters of one lock. */
+    private static class LockState {
+        final HashMap<TransactionId, Mode> holders = new HashMap<>();
+        final LinkedList<Request> queue = new LinkedList<>();
+
+        boolean isFree() {
+            return holders.isEmpty() && queue.isEmpty();
+        }
+
+        boolean compatible(Request r) {
+            for (Map.Entry<TransactionId, Mode> h : holders.entrySet()) {
+                if (!h.getKey().equals(r.tid) && !r.mode.compatible(h.getValue()))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    //guards all the state below; held only briefly, never while waiting
+    private final ReentrantLock latch = new ReentrantLock();
+    //table, page or tuple -> its lock
+    private final HashMap<Object, LockState> locks = new HashMap<>();
+    //transaction -> the tables, pages and tuples it holds locks on
+    private final HashMap<TransactionId, HashSet<Object>> held = new HashMap<>();
+    //transaction -> table id -> number of page locks it holds on the table
+    private final HashMap<TransactionId, HashMap<Integer, Integer>> pageCounts = new HashMap<>();
+    //transaction -> the request it is waiting on
+    private final HashMap<TransactionId, Request> waiting = new HashMap<>();
+    //transactions aborted by an older one under WOUND_WAIT, until they release
+    private final HashSet<TransactionId> wounded = new HashSet<>();
+    private DeadlockPolicy policy = DeadlockPolicy.DETECT_ON_WAIT;
+    private int escalationThreshold = ESCALATION_THRESHOLD;
+    //milliseconds a request waits before it is aborted, 0 to wait until granted
+    private long waitTimeout;
+    //locks a transaction may hold, 0 for no limit
+    private int lockBudget;
+    //the background detector, while it runs
+    private Thread detector;
+    private final Condition detectorTick = latch.newCondition();
+
+    private long waits;
+    private long waitNanos;
+    private long deadlocks;
+    private long aborts;
+    private long wounds;
+    private long escalations;
+    private long timeouts;
+    private long overBudget;
+
+    /**
+     * Acquires a lock on a page, and the intention lock on its table, blocking
+     * until they are granted.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @throws TransactionAbortedException if the deadlock policy aborted tid
+     */
+    void acquire(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            TableKey table = new TableKey(pid.getTableId());
+            Mode mode = exclusive ? Mode.X : Mode.S;
+            if (covers(tid, table, mode))
+                return;
+            lock(tid, table, exclusive ? Mode.IX : Mode.IS);
+            if (covers(tid, table, mode))
+                return;
+            lock(tid, pid, mode);
+            Integer pages = pageCounts.getOrDefault(tid, new HashMap<>()).get(table.tableId);
+            if (pages != null && pages > escalationThreshold)
+                escalate(tid, table);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires the intention locks on a page and its table that a transaction
+     * needs before it locks tuples of the page, blocking until they are
+     * granted.
+     *
+     * @param exclusive true to update tuples of the page, false to read them
+     */
+    void acquireIntention(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            TableKey table = new TableKey(pid.getTableId());
+            Mode covering = exclusive ? Mode.X : Mode.S;
+            if (covers(tid, table, covering))
+                return;
+            Mode intention = exclusive ? Mode.IX : Mode.IS;
+            lock(tid, table, intention);
+            if (covers(tid, table, covering))
+                return;
+            lock(tid, pid, intention);
+            Integer pages = pageCounts.getOrDefault(tid, new HashMap<>()).get(table.tableId);
+            if (pages != null && pages > escalationThreshold)
+                escalate(tid, table);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires a lock on a tuple, and the intention locks on its page and
+     * table, blocking until they are granted.
+     *
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @throws TransactionAbortedException if the deadlock policy aborted tid
+     */
+    void acquireTuple(TransactionId tid, RecordId rid, boolean exclusive)
+            throws TransactionAbortedException {
+        acquireIntention(tid, rid.getPageId(), exclusive);
+        latch.lock();
+        try {
+            Mode mode = exclusive ? Mode.X : Mode.S;
+            if (covers(tid, new TableKey(rid.getPageId().getTableId()), mode)
+                    || covers(tid, rid.getPageId(), mode))
+                return;
+            lock(tid, rid, mode);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires a lock on a key of an index and the gap before it, and the
+     * intention lock on the index, blocking until they are granted.
+     *
+     * @param key the key, or null for the end of the index
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @throws TransactionAbortedException if the deadlock policy aborted tid
+     */
+    void acquireKey(TransactionId tid, int tableId, Field key, boolean exclusive)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            TableKey table = new TableKey(tableId);
+            Mode mode = exclusive ? Mode.X : Mode.S;
+            if (covers(tid, table, mode))
+                return;
+            lock(tid, table, exclusive ? Mode.IX : Mode.IS);
+            if (covers(tid, table, mode))
+                return;
+            lock(tid, new IndexKey(tableId, key), mode);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Acquires an exclusive lock on a tuple if that needs no waiting.  The
+     * caller holds the exclusive intention lock on the tuple's page.
+     *
+     * @return true if tid holds the lock now
+     */
+    boolean tryAcquireTuple(TransactionId tid, RecordId rid) {
+        latch.lock();
+        try {
+            if (covers(tid, new TableKey(rid.getPageId().getTableId()), Mode.X)
+                    || covers(tid, rid.getPageId(), Mode.X) || covers(tid, rid, Mode.X))
+                return true;
+            LockState state = locks.computeIfAbsent(rid, k -> new LockState());
+            Mode current = state.holders.get(tid);
+            Request r = new Request(tid, rid, Mode.X, null);
+            if ((current != null || state.queue.isEmpty()) && state.compatible(r)) {
+                grant(state, r);
+                return true;
+            }
+            if (state.isFree())
+                locks.remove(rid);
+            return false;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Grants tid the given mode on key, or a mode that covers it, waiting as
+     * long as the lock is held in an incompatible mode.
+     */
+    private void lock(TransactionId tid, Object key, Mode mode) throws TransactionAbortedException {
+        if (wounded.contains(tid)) {
+            ++aborts;
+            throw new TransactionAbortedException();
+        }
+        LockState state = locks.computeIfAbsent(key, k -> new LockState());
+        Mode current = state.holders.get(tid);
+        if (current != null && current.covers(mode))
+            return;
+        if (current == null && lockBudget > 0 && !(key instanceof TableKey)
+                && held.getOrDefault(tid, new HashSet<>()).size() >= lockBudget) {
+            if (state.isFree())
+                locks.remove(key);
+            reduceLocks(tid);
+            Integer table = tableOf(key);
+            if (covers(tid, new TableKey(table), mode))
+                return;
+            state = locks.computeIfAbsent(key, k -> new LockState());
+        }
+        Request r = new Request(tid, key, current == null ? mode : current.join(mode), latch.newCondition());
+        if ((current != null || state.queue.isEmpty()) && state.compatible(r)) {
+            grant(state, r);
+            return;
+        }
+        if (current != null)
+            state.queue.addFirst(r);
+        else
+            state.queue.addLast(r);
+        waiting.put(tid, r);
+        beforeWait(r);
+        if (!r.isAborted)
+            await(r);
+        if (r.isAborted)
+            throw new TransactionAbortedException();
+    }
+
+    private boolean covers(TransactionId tid, Object key, Mode mode) {
+        LockState state = locks.get(key);
+        Mode current = state == null ? null : state.holders.get(tid);
+        return current != null && current.covers(mode);
+    }
+
+    /**
+     * Replaces the shared page locks tid holds on a table by a table lock, if
+     * the table lock can be granted without waiting.
+     */
+    private void escalate(TransactionId tid, TableKey table) {
+        LockState state = locks.get(table);
+        Mode current = state.holders.get(tid);
+        Mode target = current == Mode.IS ? Mode.S : current == Mode.IX ? Mode.SIX : null;
+        if (target == null)
+            return;
+        Request r = new Request(tid, table, target, null);
+        if (!state.compatible(r))
+            return;
+        grant(state, r);
+        ++escalations;
+        Iterator<Object> it = held.get(tid).iterator();
+        while (it.hasNext()) {
+            Object key = it.next();
+            if (key instanceof PageId && ((PageId) key).getTableId() == table.tableId
+                    && locks.get(key).holders.get(tid) == Mode.S) {
+                it.remove();
+                releaseLocked(tid, key);
+            }
+        }
+    }
+
+    /** @return the id of the table a page, tuple or index key belongs to */
+    private static int tableOf(Object key) {
+        if (key instanceof PageId)
+            return ((PageId) key).getTableId();
+        if (key instanceof RecordId)
+            return ((RecordId) key).getPageId().getTableId();
+        return ((IndexKey) key).tableId;
+    }
+
+    /**
+     * Brings tid under its lock budget before it takes another lock, by
+     * escalating its page locks, on the tables it holds the most pages of
+     * first.
+     *
+     * @throws TransactionAbortedException if tid still holds its budget of locks
+     */
+    private void reduceLocks(TransactionId tid) throws TransactionAbortedException {
+        ArrayList<Map.Entry<Integer, Integer>> tables =
+                new ArrayList<>(pageCounts.getOrDefault(tid, new HashMap<>()).entrySet());
+        tables.sort(Map.Entry.<Integer, Integer>comparingByValue().reversed());
+        for (Map.Entry<Integer, Integer> table : tables) {
+            if (held.get(tid).size() < lockBudget)
+                return;
+            escalate(tid, new TableKey(table.getKey()));
+        }
+        if (held.get(tid).size() < lockBudget)
+            return;
+        ++overBudget;
+        ++aborts;
+        throw new TransactionAbortedException();
+    }
+
+    /** Applies the deadlock policy to a request that is about to wait. */
+    private void beforeWait(Request r) {
+        switch (policy) {
+        case DETECT_ON_WAIT:
+            if (waitsFor(r.tid, r.tid, new HashSet<>(), new ArrayList<>())) {
+                ++deadlocks;
+                abort(r);
+            }
+            break;
+        case DETECTOR:
+            startDetector();
+            break;
+        case WAIT_DIE:
+            for (TransactionId blocker : blockers(r)) {
+                if (blocker.isOlderThan(r.tid)) {
+                    abort(r);
+                    break;
+                }
+            }
+            break;
+        case WOUND_WAIT:
+            for (TransactionId blocker : blockers(r)) {
+                if (r.tid.isOlderThan(blocker) && wounded.add(blocker)) {
+                    ++wounds;
+                    //a running victim aborts at its next lock request, if
+                    //it makes one before it commits
+                    Request victim = waiting.get(blocker);
+                    if (victim != null)
+                        abort(victim);
+                }
+            }
+            break;
+        }
+    }
+
+    private void await(Request r) {
+        ++waits;
+        long start = System.nanoTime();
+        boolean done = false;
+        boolean interrupted = false;
+        try {
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+            while (!r.isGranted && !r.isAborted) {
+                if (waitTimeout == 0) {
+                    r.granted.awaitUninterruptibly();
+                    continue;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    ++timeouts;
+                    abort(r);
+                    break;
+                }
+                try {
+                    r.granted.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    //keep waiting, as without a timeout
+                    interrupted = true;
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                //the waiting thread was stopped, possibly without the latch
+                if (!latch.isHeldByCurrentThread())
+                    latch.lock();
+                if (!r.isGranted && !r.isAborted)
+                    withdraw(r);
+            }
+            waitNanos += System.nanoTime() - start;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Withdraws a waiting request and wakes its transaction to abort. */
+    private void abort(Request r) {
+        ++aborts;
+        r.isAborted = true;
+        withdraw(r);
+        r.granted.signal();
+    }
+
+    /**
+     * Releases the lock tid holds on pid, if any, and grants waiters.  The
+     * lock on the table is kept.
+     */
+    void release(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            HashSet<Object> keys = held.get(tid);
+            if (keys != null && keys.remove(pid) && keys.isEmpty())
+                held.remove(tid);
+            releaseLocked(tid, pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Releases the lock tid holds on a page or tuple if it is a read lock (S
+     * or IS), and grants waiters; update locks are kept.
+     */
+    void releaseShared(TransactionId tid, Object key) {
+        latch.lock();
+        try {
+            LockState state = locks.get(key);
+            Mode current = state == null ? null : state.holders.get(tid);
+            if (current != Mode.S && current != Mode.IS)
+                return;
+            HashSet<Object> keys = held.get(tid);
+            if (keys != null && keys.remove(key) && keys.isEmpty())
+                held.remove(tid);
+            releaseLocked(tid, key);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Releases every lock tid holds and grants the waiters. */
+    void releaseAll(TransactionId tid) {
+        latch.lock();
+        try {
+            wounded.remove(tid);
+            HashSet<Object> keys = held.remove(tid);
+            if (keys == null)
+                return;
+            for (Object key : keys)
+                releaseLocked(tid, key);
+            pageCounts.remove(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Return true if tid holds a lock on pid, or a lock on its table that
+     * covers reading it.
+     */
+    boolean holdsLock(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            return covers(tid, pid, Mode.S) || covers(tid, new TableKey(pid.getTableId()), Mode.S);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Return true if tid holds an exclusive lock on pid. */
+    boolean holdsExclusive(TransactionId tid, PageId pid) {
+        latch.lock();
+        try {
+            return covers(tid, pid, Mode.X);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the mode tid holds on a table, or null */
+    Mode getTableMode(TransactionId tid, int tableId) {
+        latch.lock();
+        try {
+            LockState state = locks.get(new TableKey(tableId));
+            return state == null ? null : state.holders.get(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Changes the deadlock policy, breaking the deadlocks that exist now. */
+    void setPolicy(DeadlockPolicy policy) {
+        latch.lock();
+        try {
+            this.policy = policy;
+            breakDeadlocks();
+            if (policy == DeadlockPolicy.DETECTOR && !waiting.isEmpty())
+                startDetector();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    DeadlockPolicy getPolicy() {
+        latch.lock();
+        try {
+            return policy;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of page locks on one table past which a transaction's
+     * locks are escalated to a table lock.
+     */
+    void setEscalationThreshold(int pages) {
+        latch.lock();
+        try {
+            escalationThreshold = pages;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Sets how long a lock request waits before it is aborted.
+     *
+     * @param millis the timeout in milliseconds, or 0 to wait until granted
+     */
+    void setWaitTimeout(long millis) {
+        latch.lock();
+        try {
+            waitTimeout = millis;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    long getWaitTimeout() {
+        latch.lock();
+        try {
+            return waitTimeout;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Sets the number of locks one transaction may hold.  Its table locks
+     * count towards the budget, but are granted even past it.
+     *
+     * @param locks the budget, or 0 for no limit
+     */
+    void setLockBudget(int locks) {
+        latch.lock();
+        try {
+            lockBudget = locks;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    int getLockBudget() {
+        latch.lock();
+        try {
+            return lockBudget;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    LockStats getStats() {
+        latch.lock();
+        try {
+            return new LockStats(policy, waits, TimeUnit.NANOSECONDS.toMillis(waitNanos), deadlocks, aborts,
+                    wounds, escalations, timeouts, overBudget);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return a snapshot of the pages tid holds page locks on */
+    Set<PageId> getLockedPages(TransactionId tid) {
+        latch.lock();
+        try {
+            HashSet<PageId> pages = new HashSet<>();
+            for (Object key : held.getOrDefault(tid, new HashSet<>())) {
+                if (key instanceof PageId)
+                    pages.add((PageId) key);
+            }
+            return pages;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private void grant(LockState state, Request r) {
+        if (state.holders.put(r.tid, r.mode) == null && r.key instanceof PageId)
+            pageCounts.computeIfAbsent(r.tid, t -> new HashMap<>())
+                    .merge(((PageId) r.key).getTableId(), 1, Integer::sum);
+        r.isGranted = true;
+        held.computeIfAbsent(r.tid, t -> new HashSet<>()).add(r.key);
+    }
+
+    private void withdraw(Request r) {
+        LockState state = locks.get(r.key);
+        state.queue.remove(r);
+        waiting.remove(r.tid);
+        grantWaiters(r.key, state);
+    }
+
+    private void releaseLocked(TransactionId tid, Object key) {
+        LockState state = locks.get(key);
+        if (state == null || state.holders.remove(tid) == null)
+            return;
+        if (key instanceof PageId) {
+            HashMap<Integer, Integer> counts = pageCounts.get(tid);
+            if (counts != null)
+                counts.computeIfPresent(((PageId) key).getTableId(), (t, n) -> n == 1 ? null : n - 1);
+        }
+        grantWaiters(key, state);
+    }
+
+    /**
+     * Grants the requests at the head of the queue for as long as they are
+     * compatible with the holders, stopping at the first one that is not.
+     */
+    private void grantWaiters(Object key, LockState state) {
+        while (!state.queue.isEmpty() && state.compatible(state.queue.peekFirst())) {
+            Request r = state.queue.removeFirst();
+            grant(state, r);
+            waiting.remove(r.tid);
+            r.granted.signal();
+        }
+        if (state.isFree())
+            locks.remove(key);
+    }
+
+    private void startDetector() {
+        if (detector == null) {
+            detector = new Thread(this::detectDeadlocks, "deadlock detector");
+            detector.setDaemon(true);
+            detector.start();
+        }
+    }
+
+    /**
+     * Body of the background detector: breaks the deadlocks every
+     * DETECTOR_PERIOD milliseconds, for as long as transactions wait.
+     */
+    private void detectDeadlocks() {
+        latch.lock();
+        try {
+            while (policy == DeadlockPolicy.DETECTOR && !waiting.isEmpty()) {
+                detectorTick.await(DETECTOR_PERIOD, TimeUnit.MILLISECONDS);
+                breakDeadlocks();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            detector = null;
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Aborts one transaction of every waits-for cycle: the one holding the
+     * fewest locks, the youngest among equals.
+     */
+    private void breakDeadlocks() {
+        Comparator<TransactionId> cost = Comparator
+                .comparingInt((TransactionId t) -> held.containsKey(t) ? held.get(t).size() : 0)
+                .thenComparing(Comparator.comparingLong(TransactionId::getId).reversed());
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (TransactionId tid : new ArrayList<>(waiting.keySet())) {
+                ArrayList<TransactionId> cycle = new ArrayList<>();
+                if (waiting.containsKey(tid) && waitsFor(tid, tid, new HashSet<>(), cycle)) {
+                    ++deadlocks;
+                    abort(waiting.get(Collections.min(cycle, cost)));
+                    found = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return true if from waits, directly or through other waiting
+     * transactions, for target, and leave the transactions on the way in path.
+     */
+    private boolean waitsFor(TransactionId from, TransactionId target, HashSet<TransactionId> visited,
+                             List<TransactionId> path) {
+        Request r = waiting.get(from);
+        if (r == null || !visited.add(from))
+            return false;
+        path.add(from);
+        for (TransactionId blocker : blockers(r)) {
+            if (blocker.equals(target) || waitsFor(blocker, target, visited, path))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /**
+     * @return the transactions a waiting request waits for: the holders of
+     *   its lock in an incompatible mode and the incompatible requests queued
+     *   ahead of it
+     */
+    private List<TransactionId> blockers(Request mine) {
+        LockState state = locks.get(mine.key);
+        ArrayList<TransactionId> blockers = new ArrayList<>();
+        for (Map.Entry<TransactionId, Mode> h : state.holders.entrySet()) {
+            if (!h.getKey().equals(mine.tid) && !mine.mode.compatible(h.getValue()))
+                blockers.add(h.getKey());
+        }
+        for (Request r : state.queue) {
+            if (r == mine)
+                break;
+            if (!r.tid.equals(mine.tid) && !mine.mode.compatible(r.mode))
+                blockers.add(r.tid);
+        }
+        return blockers;
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+/**
+ * A snapshot of the lock manager counters since the BufferPool was created.
+ *
+ * @see BufferPool#getLockStats
+ */
+public class LockStats {
+    private final DeadlockPolicy policy;
+    private final long waits;
+    private final long waitMillis;
+    private final long deadlocks;
+    private final long aborts;
+    private final long wounds;
+    private final long escalations;
+    private final long timeouts;
+    private final long overBudget;
+
+    LockStats(DeadlockPolicy policy, long waits, long waitMillis, long deadlocks, long aborts,
+              long wounds, long escalations, long timeouts, long overBudget) {
+        this.policy = policy;
+        this.waits = waits;
+        this.waitMillis = waitMillis;
+        this.deadlocks = deadlocks;
+        this.aborts = aborts;
+        this.wounds = wounds;
+        this.escalations = escalations;
+        this.timeouts = timeouts;
+        this.overBudget = overBudget;
+    }
+
+    /** @return the deadlock policy in effect */
+    public DeadlockPolicy getPolicy() {
+        return policy;
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getWaits() {
+        return waits;
+    }
+
+    /** @return the total time lock requests spent waiting, in milliseconds */
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    /**
+     * @return the number of waits-for cycles found; always 0 under the
+     *   timestamp policies, which never let a cycle form
+     */
+    public long getDeadlocks() {
+        return deadlocks;
+    }
+
+    /**
+     * @return the number of transactions aborted, by the deadlock policy, a
+     *   lock wait timeout or the lock budget
+     */
+    public long getAborts() {
+        return aborts;
+    }
+
+    /**
+     * @return the number of transactions wounded under WOUND_WAIT; a wounded
+     *   transaction is counted in {@link #getAborts} only once it is aborted
+     */
+    public long getWounds() {
+        return wounds;
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalations() {
+        return escalations;
+    }
+
+    /** @return the number of lock requests aborted because they waited too long */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /** @return the number of transactions aborted for holding too many locks */
+    public long getOverBudget() {
+        return overBudget;
+    }
+
+    @Override
+    public String toString() {
+        return policy + ": " + waits + " waits, " + waitMillis + " ms waiting, "
+                + deadlocks + " deadlocks, " + aborts + " aborts, " + wounds + " wounds, " + escalations + " escalations, "
+                + timeouts + " timeouts, " + overBudget + " over budget";
+    }
+}
@@ -4,6 +4,7 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.channels.Channels;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,23 +16,13 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening.)  BufferPool writes log records (on page
+flushes) and the log file flushes and discards BufferPool pages (on
+checkpoints, rollback and recovery.)  BufferPool has no monitor of its
+own; it guards its pages with per-shard locks, and when it logs a page
+it takes the LogFile monitor before the shard lock.  A LogFile
+operation may therefore access the BufferPool while it holds this
+monitor, as long as it does not hold a shard lock itself.
 */
 
 /**
@@ -51,8 +42,18 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Records are numbered in the order they are appended, from 1; the
+number of a record is its log sequence number (LSN).  LSNs are not stored
+in the file.  A page remembers the LSN of the last UPDATE or DELTA record
+logged for it, and is only written out once the log is forced up to that
+record.  The check costs no force when a COMMIT or a concurrent force
+already made the record durable, as for the pages a commit writes.  A
+dirty page written back before its transaction commits is logged at that
+moment, so its write still waits for a force, which it may share with the
+transactions committing meanwhile.
+
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,6 +62,19 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records log an update to a few bytes of a page, such as a tuple
+inserted or deleted and its header bit, instead of full images.  They
+consist of the page id (its class name, an integer count and the integers
+of PageId.serialize()), an integer count of byte ranges, and for each
+range an integer offset into the page data, an integer length, the bytes
+of the range before the update and the bytes after it.  A page is logged
+with full images when its update changes too much of it for a DELTA record
+to be smaller, as when a B+ tree page is split or merged, and when its
+transaction already logged it, since a range the transaction changed back
+would be missing from a DELTA record against the before image.  Recovery
+applies a DELTA record to the page on disk, or to an empty page if the
+file was truncated below it since.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
@@ -82,6 +96,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -92,6 +107,30 @@ public class LogFile {
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // the pages each running transaction logged //protected by this
+    HashMap<Long,Set<PageId>> tidToLoggedPages = new HashMap<Long,Set<PageId>>();
+
+    static final int BUFFER_SIZE = 1 << 16;
+
+    // records are serialized into the tail buffer, and written to the file
+    // in one chunk when the buffer fills, before the log is forced and
+    // before the file is read.  currentOffset counts the buffered bytes, so
+    // the offsets in records are those the records have in the file.
+    private final ByteArrayOutputStream tailBytes = new ByteArrayOutputStream(BUFFER_SIZE);
+    private final DataOutputStream tail = new DataOutputStream(tailBytes);
+    private long tailOffset = -1; // file offset of the first buffered byte //protected by this
+    private volatile long appended = 0; // LSN of the last record, written under this
+    private volatile long written = 0; // LSN of the last record in the file, written under this
+
+    // group commit: the log is forced by one thread at a time, for all the
+    // records written so far, while the threads whose records it covers wait
+    private final Object flushLock = new Object(); // guards the fields below; taken after this, never before
+    private long durable = 0; // LSN of the last record known to be on disk
+    private boolean flushing = false;
+    private int flushWaiters = 0;
+    private long groupDelayMicros = 0;
+    private int groupSize = 0;
+    private long forces = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -132,7 +171,38 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            tailOffset = currentOffset;
+        }
+    }
+
+    /**
+     * Ends the record just serialized into the tail buffer, writing the
+     * buffer out if it is full.  The caller holds this.
+     *
+     * @return the LSN of the record
+     */
+    private long endRecord() throws IOException {
+        currentOffset = tailOffset + tailBytes.size();
+        long lsn = ++appended;
+        if (tailBytes.size() >= BUFFER_SIZE)
+            writeTail();
+        return lsn;
+    }
+
+    /**
+     * Writes the buffered records to the file, and leaves the file pointer
+     * at the end of the log.  The caller holds this.
+     */
+    private void writeTail() throws IOException {
+        if (tailOffset < 0)
+            return;
+        raf.seek(tailOffset);
+        if (tailBytes.size() > 0) {
+            tailBytes.writeTo(Channels.newOutputStream(raf.getChannel()));
+            tailOffset += tailBytes.size();
+            tailBytes.reset();
         }
+        written = appended;
     }
 
     public synchronized int getTotalRecords() {
@@ -144,50 +214,54 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            tail.writeInt(ABORT_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(currentOffset);
+            endRecord();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLoggedPages.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The log is forced after the
+        monitor is released, so transactions committing at the same
+        time share one force (group commit.)
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long record;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            tail.writeInt(COMMIT_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(currentOffset);
+            record = endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLoggedPages.remove(tid.getId());
+        }
+        force(record);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write an UPDATE record to the log for the specified tid and page
+        (with provided         before and after images), or a DELTA
+        record of the bytes that differ between them, and set the LSN
+        of the after image to the record's.  The page must not be written to
+        disk before the log is forced up to it.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -197,7 +271,7 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -206,21 +280,41 @@ public class LogFile {
            before page data (see writePageData)
            after page data
            start offset
+
+           and a delta record of
+
+           record type
+           transaction id
+           page id and changed ranges (see writeDelta)
+           start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        //transactions that did not log a BEGIN record start at their first update
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), currentOffset);
+        boolean again = !tidToLoggedPages.computeIfAbsent(tid.getId(), t -> new HashSet<PageId>())
+            .add(after.getId());
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        List<int[]> ranges = again ? null : changedRanges(beforeData, afterData);
+        if (ranges != null) {
+            tail.writeInt(DELTA_RECORD);
+            tail.writeLong(tid.getId());
+            writeDelta(tail, after.getId(), ranges, beforeData, afterData);
+        }
+        else {
+            tail.writeInt(UPDATE_RECORD);
+            tail.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+            writePageData(tail,before);
+            writePageData(tail,after);
+        }
+        tail.writeLong(currentOffset);
+        after.setLSN(endRecord());
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
 
         //page data is:
         // page class name
@@ -231,56 +325,47 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(raf, pid);
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
+    Page readPageData(DataInput raf) throws IOException {
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+        int pageSize = raf.readInt();
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        try {
+            return buildPage(Class.forName(pageClassName), pid, pageData);
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        }
+    }
+
+    /** Builds a page of the given class from its data */
+    Page buildPage(Class<?> pageClass, PageId pid, byte[] pageData) throws IOException {
+        Page newPage = null;
+        try {
+            //B+ tree pages need more than the page data, so let the file build them
+            newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).createPage(pid, pageData);
+            if (newPage == null) {
+                Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+                Object[] pageArgs = new Object[2];
+                pageArgs[0] = pid;
+                pageArgs[1] = pageData;
+
+                newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            }
+
+            //            Debug.log("READ PAGE OF TYPE " + pageClass.getName() + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -295,6 +380,191 @@ public class LogFile {
 
     }
 
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+
+        raf.writeUTF(pid.getClass().getName());
+        raf.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            raf.writeInt(pageInfo[i]);
+        }
+    }
+
+    PageId readPageId(DataInput raf) throws IOException {
+        String idClassName = raf.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = raf.readInt();
+            Object idArgs[] = new Object[numIdArgs];
+            for (int i = 0; i<numIdArgs;i++) {
+                idArgs[i] = new Integer(raf.readInt());
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InstantiationException
+                 | IllegalAccessException | InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    /**
+     * Returns the ranges of bytes where a page's data differs from its
+     * before image, as {offset, end} pairs.  Ranges closer than the size of
+     * a range header are merged.
+     *
+     * @return the ranges, or null if logging them takes more than half the
+     *   space of logging the full images
+     */
+    static List<int[]> changedRanges(byte[] before, byte[] after) {
+        if (before.length != after.length)
+            return null;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int size = 0;
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                ++i;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (i = end; i < after.length && i - end < 2 * INT_SIZE; ++i) {
+                if (before[i] != after[i])
+                    end = i + 1;
+            }
+            ranges.add(new int[]{start, end});
+            size += 2 * INT_SIZE + 2 * (end - start);
+            if (size > after.length)
+                return null;
+        }
+        return ranges;
+    }
+
+    /** Writes the body of a DELTA record: a page id and its changed ranges */
+    void writeDelta(DataOutput raf, PageId pid, List<int[]> ranges, byte[] before, byte[] after)
+        throws IOException {
+        writePageId(raf, pid);
+        raf.writeInt(ranges.size());
+        for (int[] r : ranges) {
+            raf.writeInt(r[0]);
+            raf.writeInt(r[1] - r[0]);
+            raf.write(before, r[0], r[1] - r[0]);
+            raf.write(after, r[0], r[1] - r[0]);
+        }
+    }
+
+    /** A change to a page, read from an UPDATE or a DELTA record */
+    private class PageChange {
+        final PageId pid;
+        // full images, for an UPDATE record
+        final Page beforePage, afterPage;
+        // changed ranges, for a DELTA record
+        final int[] offsets;
+        final byte[][] before, after;
+
+        PageChange(Page beforePage, Page afterPage) {
+            this.pid = afterPage.getId();
+            this.beforePage = beforePage;
+            this.afterPage = afterPage;
+            this.offsets = null;
+            this.before = this.after = null;
+        }
+
+        PageChange(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+            this.pid = pid;
+            this.beforePage = this.afterPage = null;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Redoes or undoes the change on the image of the page in images,
+         * which are keyed by their place in the file, since a B+ tree page
+         * number can be reused by a page of another category; a page with
+         * no image there is read from disk.
+         */
+        void apply(Map<Long, Page> images, boolean redo) throws IOException {
+            if (beforePage != null) {
+                images.put(location(pid), redo ? afterPage : beforePage);
+                return;
+            }
+            Page base = images.get(location(pid));
+            if (base == null)
+                base = readBase(pid);
+            else if (!base.getId().equals(pid))
+                base = Database.getCatalog().getDatabaseFile(pid.getTableId())
+                    .createPage(pid, base.getPageData());
+            byte[] data = base.getPageData().clone();
+            for (int i = 0; i < offsets.length; ++i) {
+                byte[] bytes = redo ? after[i] : before[i];
+                System.arraycopy(bytes, 0, data, offsets[i], bytes.length);
+            }
+            images.put(location(pid), buildPage(base.getClass(), pid, data));
+        }
+
+        /**
+         * Reads the page from disk.  Vacuum and B+ tree compaction truncate
+         * files without logging it, so a page past the end of its file was
+         * emptied and dropped since, and its changes apply to an empty page.
+         */
+        private Page readBase(PageId pid) throws IOException {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            try {
+                return file.readPage(pid);
+            } catch (IllegalArgumentException e) {
+                Page empty = file.createPage(pid, new byte[BufferPool.getPageSize()]);
+                if (empty == null)
+                    throw e;
+                return empty;
+            }
+        }
+
+        private Long location(PageId pid) {
+            return ((long) pid.getTableId() << 32) | (pid.pageNumber() & 0xffffffffL);
+        }
+
+        /** Writes the change as the body of a record of its type */
+        void write(DataOutput raf) throws IOException {
+            if (beforePage != null) {
+                writePageData(raf, beforePage);
+                writePageData(raf, afterPage);
+                return;
+            }
+            writePageId(raf, pid);
+            raf.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; ++i) {
+                raf.writeInt(offsets[i]);
+                raf.writeInt(before[i].length);
+                raf.write(before[i]);
+                raf.write(after[i]);
+            }
+        }
+    }
+
+    /** Reads the body of an UPDATE or a DELTA record */
+    private PageChange readChange(int type, DataInput raf) throws IOException {
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(raf);
+            Page after = readPageData(raf);
+            return new PageChange(before, after);
+        }
+        PageId pid = readPageId(raf);
+        int n = raf.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int i = 0; i < n; ++i) {
+            offsets[i] = raf.readInt();
+            before[i] = new byte[raf.readInt()];
+            after[i] = new byte[before[i].length];
+            raf.readFully(before[i]);
+            raf.readFully(after[i]);
+        }
+        return new PageChange(pid, offsets, before, after);
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,51 +577,52 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        tail.writeInt(BEGIN_RECORD);
+        tail.writeLong(tid.getId());
+        tail.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            force();
+            Database.getBufferPool().flushAllPages();
+            //the checkpoint record is written to the file directly
+            writeTail();
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                raf.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                raf.writeLong(tidToFirstLogRecord.get(key));
             }
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            endCpOffset = raf.getFilePointer();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tailOffset = currentOffset;
+            written = ++appended;
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
@@ -361,6 +632,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        writeTail();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -410,11 +682,12 @@ public class LogFile {
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                case DELTA_RECORD:
+                    //transactions without a BEGIN record start at an update
+                    Long first = tidToFirstLogRecord.get(record_tid);
+                    if (first != null && first == raf.getFilePointer() - INT_SIZE - LONG_SIZE)
+                        tidToFirstLogRecord.put(record_tid, newStart);
+                    readChange(type, raf).write(logNew);
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -442,14 +715,21 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        //the records forced to the old log must be on disk in the new one,
+        //and no flusher may force the old one once it is closed
+        logNew.getChannel().force(true);
+        synchronized (flushLock) {
+            raf.close();
+            logFile.delete();
+            newFile.renameTo(logFile);
+            raf = new RandomAccessFile(logFile, "rw");
+            raf.seek(raf.length());
+            newFile.delete();
+            durable = appended;
+        }
 
         currentOffset = raf.getFilePointer();
+        tailOffset = currentOffset;
         //print();
     }
 
@@ -463,14 +743,63 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        synchronized(this) {
+            preAppend();
+            writeTail();
+            // some code goes here
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                return;
+            //undoing tid's changes from the last one back leaves each page
+            //in its state before tid
+            ArrayList<PageChange> changes = new ArrayList<PageChange>();
+            DataInputStream in = readFrom(first);
+            while (true) {
+                try {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                        PageChange c = readChange(type, in);
+                        if (recordTid == tid.getId())
+                            changes.add(c);
+                    }
+                    else if (type == CHECKPOINT_RECORD)
+                        skipCheckpoint(in);
+                    in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            raf.seek(currentOffset);
+            LinkedHashMap<Long, Page> before = new LinkedHashMap<Long, Page>();
+            for (int i = changes.size() - 1; i >= 0; --i)
+                changes.get(i).apply(before, false);
+            for (Page p : before.values()) {
+                Database.getBufferPool().discardPage(p.getId());
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
             }
         }
     }
 
+    /**
+     * Returns a buffered stream over the log records from offset to the end
+     * of the log; reading it moves the file pointer of raf.
+     */
+    private DataInputStream readFrom(long offset) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+                java.nio.channels.Channels.newInputStream(raf.getChannel().position(offset))));
+    }
+
+    private void skipCheckpoint(DataInput in) throws IOException {
+        int numXactions = in.readInt();
+        in.skipBytes(2 * numXactions * LONG_SIZE);
+    }
+
+    /** @return true if tid has written log records but no COMMIT or ABORT record yet */
+    synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -490,12 +819,61 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        synchronized (this) {
+            recoveryUndecided = false;
+            // some code goes here
+            HashSet<Long> committed = new HashSet<Long>();
+            HashSet<Long> finished = new HashSet<Long>();
+            ArrayList<Long> updateTids = new ArrayList<Long>();
+            ArrayList<PageChange> updates = new ArrayList<PageChange>();
+            DataInputStream in = readFrom(LONG_SIZE);
+            while (true) {
+                try {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        updateTids.add(recordTid);
+                        updates.add(readChange(type, in));
+                        break;
+                    case CHECKPOINT_RECORD:
+                        skipCheckpoint(in);
+                        break;
+                    case COMMIT_RECORD:
+                        committed.add(recordTid);
+                        finished.add(recordTid);
+                        break;
+                    case ABORT_RECORD:
+                        finished.add(recordTid);
+                        break;
+                    }
+                    in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+
+            //redo committed transactions, then undo the ones that never finished;
+            //aborted transactions were already rolled back by logAbort
+            HashMap<Long, Page> images = new HashMap<Long, Page>();
+            for (int i = 0; i < updates.size(); ++i)
+                if (committed.contains(updateTids.get(i)))
+                    updates.get(i).apply(images, true);
+            for (int i = updates.size() - 1; i >= 0; --i)
+                if (!finished.contains(updateTids.get(i)))
+                    updates.get(i).apply(images, false);
+            for (Page p : images.values()) {
+                Database.getBufferPool().discardPage(p.getId());
+                Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
             }
-         }
+
+            tidToFirstLogRecord.clear();
+            tidToLoggedPages.clear();
+            raf.seek(raf.length());
+            currentOffset = raf.getFilePointer();
+            tailOffset = currentOffset;
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +881,99 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force every record appended so far to disk. */
+    public void force() throws IOException {
+        force(appended);
+    }
+
+    /**
+     * Set how the forces of the log are grouped.  A thread that is about
+     * to force the log first waits up to delayMicros for more threads to
+     * need it, unless groupSize threads already do; all of them are then
+     * covered by one force.  With no delay, the log is forced at once, for
+     * the records of the threads that waited while it was last forced.
+     *
+     * @param delayMicros the longest time to wait before a force, or 0
+     * @param groupSize the number of waiting threads that ends the delay
+     *   early, or 0 to wait the full delay
+     */
+    public void setGroupCommit(long delayMicros, int groupSize) {
+        if (delayMicros < 0 || groupSize < 0)
+            throw new IllegalArgumentException("negative group commit setting");
+        synchronized (flushLock) {
+            groupDelayMicros = delayMicros;
+            this.groupSize = groupSize;
+        }
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        synchronized (flushLock) {
+            return forces;
+        }
+    }
+
+    /**
+     * Force the log to disk up to the record with the given LSN, and return
+     * at once if it already is.  If no other thread is forcing the log,
+     * this one does, for all the records written so far; otherwise it waits
+     * for that force, and forces the log itself if its record came too late
+     * to be covered.
+     *
+     * @param record the LSN of the record, e.g. the LSN of a page about to
+     *   be written
+     */
+    public void force(long record) throws IOException {
+        if (written < record) {
+            synchronized (this) {
+                writeTail();
+            }
+        }
+        boolean interrupted = false;
+        synchronized (flushLock) {
+            ++flushWaiters;
+            try {
+                while (durable < record) {
+                    if (flushing) {
+                        if (groupSize > 0 && flushWaiters >= groupSize)
+                            flushLock.notifyAll();
+                        try {
+                            flushLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                        continue;
+                    }
+                    flushing = true;
+                    try {
+                        //no other thread appends while this one holds the monitor
+                        long delay = Thread.holdsLock(this) ? 0 : groupDelayMicros * 1000;
+                        long deadline = System.nanoTime() + delay;
+                        long left;
+                        while ((groupSize == 0 || flushWaiters < groupSize)
+                               && (left = deadline - System.nanoTime()) > 0) {
+                            try {
+                                flushLock.wait(left / 1000000, (int) (left % 1000000));
+                            } catch (InterruptedException e) {
+                                interrupted = true;
+                                break;
+                            }
+                        }
+                        long last = written;
+                        raf.getChannel().force(true);
+                        ++forces;
+                        durable = Math.max(durable, last);
+                    } finally {
+                        flushing = false;
+                        flushLock.notifyAll();
+                    }
+                }
+            } finally {
+                --flushWaiters;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
 }
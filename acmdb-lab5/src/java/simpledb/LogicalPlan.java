@@ -271,6 +271,35 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Build a scan over the partitions of a partitioned table that may hold tuples
+     *  matching the filters on the partitioning field of that table.
+     */
+    private SeqScan prunedScan(TransactionId t, LogicalScanNode table, PartitionedFile file,
+                               boolean explain) throws ParsingException {
+        TupleDesc td = file.getTupleDesc();
+        String partitionField = td.getFieldName(file.getPartitionField());
+        Vector<Predicate> preds = new Vector<Predicate>();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(partitionField))
+                continue;
+            Field f;
+            try {
+                if (td.getFieldType(file.getPartitionField()) == Type.INT_TYPE)
+                    f = new IntField(Integer.parseInt(lf.c));
+                else
+                    f = new StringField(lf.c, Type.STRING_LEN);
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Invalid constant in filter expression " + lf.c);
+            }
+            preds.add(new Predicate(file.getPartitionField(), lf.p, f));
+        }
+        java.util.List<Integer> partitions = file.prune(preds);
+        if (explain)
+            System.out.println("Scanning " + partitions.size() + " of " + file.numPartitions()
+                    + " partitions of " + table.alias);
+        return new SeqScan(t, file.getId(), table.alias, file.iterator(t, partitions));
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -294,7 +323,11 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 if (file instanceof PartitionedFile)
+                     ss = prunedScan(t, table, (PartitionedFile) file, explain);
+                 else
+                     ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
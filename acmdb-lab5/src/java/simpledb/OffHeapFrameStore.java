@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * OffHeapFrameStore keeps the bytes of clean pages in frames of preallocated
+ * direct ByteBuffers, outside of the Java heap.  The BufferPool moves the pages
+ * it evicts into the store and rebuilds them from their frame on the next
+ * request instead of reading them from disk, so a large cache only costs the
+ * garbage collector the page objects of the working set.
+ * <p>
+ * When the store is full, frames are reused in CLOCK order.  The store is not
+ * thread safe; the BufferPool only uses it while holding the lock of the shard
+ * that owns it.
+ */
+class OffHeapFrameStore {
+    /** Largest slab allocated as a single direct buffer. */
+    private static final int MAX_SLAB_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerSlab;
+    private final ByteBuffer[] slabs;
+    private final int[] lengths;
+    private final HashMap<PageId, Integer> frameOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<>();
+    private final ReplacementPolicy policy;
+
+    /**
+     * @param bytes the off-heap memory to allocate; rounded down to whole frames
+     * @param frameSize the size of a frame, i.e. the largest page stored
+     */
+    OffHeapFrameStore(long bytes, int frameSize) {
+        this.frameSize = frameSize;
+        int numFrames = (int) Math.min(Integer.MAX_VALUE, bytes / frameSize);
+        this.framesPerSlab = Math.max(1, MAX_SLAB_BYTES / frameSize);
+        this.slabs = new ByteBuffer[(numFrames + framesPerSlab - 1) / framesPerSlab];
+        for (int i = 0; i < slabs.length; ++i) {
+            int frames = Math.min(framesPerSlab, numFrames - i * framesPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.lengths = new int[numFrames];
+        for (int i = 0; i < numFrames; ++i)
+            freeFrames.add(i);
+        this.policy = new ClockPolicy(numFrames);
+    }
+
+    /** @return the number of frames in this store */
+    int numFrames() {
+        return lengths.length;
+    }
+
+    /** @return the number of pages held in this store */
+    int size() {
+        return frameOf.size();
+    }
+
+    /**
+     * Copies the bytes of a page into a frame, replacing an older copy of the
+     * page and reusing the least recently stored frame if the store is full.
+     * Pages larger than a frame are not stored.
+     */
+    void put(PageId pid, byte[] data) {
+        if (data.length > frameSize || lengths.length == 0)
+            return;
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                PageId victim = policy.chooseVictim(p -> true);
+                remove(victim);
+            }
+            frame = freeFrames.poll();
+            frameOf.put(pid, frame);
+        }
+        policy.recordAccess(pid);
+        ByteBuffer slab = slabs[frame / framesPerSlab].duplicate();
+        slab.position((frame % framesPerSlab) * frameSize);
+        slab.put(data);
+        lengths[frame] = data.length;
+    }
+
+    /**
+     * Removes a page from the store.
+     * @return the bytes of the page, or null if the store does not hold it
+     */
+    byte[] take(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null)
+            return null;
+        byte[] data = new byte[lengths[frame]];
+        ByteBuffer slab = slabs[frame / framesPerSlab].duplicate();
+        slab.position((frame % framesPerSlab) * frameSize);
+        slab.get(data);
+        remove(pid);
+        return data;
+    }
+
+    /** Drops a page from the store, if present. */
+    void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        policy.remove(pid);
+        freeFrames.add(frame);
+    }
+}
@@ -33,6 +33,20 @@ public interface Page {
    */
     public void markDirty(boolean dirty, TransactionId tid);
 
+  /**
+   * Return the log sequence number of the last update record logged for this
+   * page, or 0 if none was logged since the page was read.  The page must not
+   * be written to disk before the log is forced up to this record.
+   *
+   * @see LogFile#force(long)
+   */
+    public long getLSN();
+
+  /**
+   * Set the log sequence number of the last update record logged for this page
+   */
+    public void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
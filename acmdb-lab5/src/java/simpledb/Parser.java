@@ -581,7 +581,61 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "bufferpool", "locks" };
+
+    /**
+     * Runs a shell command that administers the database instead of querying
+     * it:
+     * <ul>
+     * <li> bufferpool; prints the capacity of every pool of the buffer pool
+     * <li> bufferpool n; resizes the default pool to n pages while it is in use
+     * <li> bufferpool name n; resizes the named pool to n pages
+     * <li> locks; prints the deadlock policy and the lock wait counters
+     * <li> locks policy; switches to a {@link DeadlockPolicy}, e.g.
+     * locks wound_wait;
+     * </ul>
+     *
+     * @param cmd a statement, ending with ';'
+     * @return true if cmd was an admin command
+     */
+    protected boolean runAdminCommand(String cmd) {
+        String[] words = cmd.substring(0, cmd.length() - 1).trim().split("\\s+");
+        if (words[0].equalsIgnoreCase("locks") && words.length <= 2)
+            return runLocksCommand(words);
+        if (!words[0].equalsIgnoreCase("bufferpool") || words.length > 3)
+            return false;
+        BufferPool bp = Database.getBufferPool();
+        if (words.length > 1) {
+            String pool = words.length == 3 ? words[1] : BufferPool.DEFAULT_POOL;
+            String pages = words[words.length - 1];
+            try {
+                bp.resize(pool, Integer.parseInt(pages));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid buffer pool size: " + pages);
+                return true;
+            } catch (IllegalArgumentException | NoSuchElementException | DbException e) {
+                System.out.println("Could not resize the buffer pool: " + e.getMessage());
+            }
+        }
+        for (String pool : bp.getPoolNames())
+            System.out.println("Buffer pool " + pool + ": " + bp.getNumPages(pool) + " pages");
+        return true;
+    }
+
+    private boolean runLocksCommand(String[] words) {
+        BufferPool bp = Database.getBufferPool();
+        if (words.length == 2) {
+            try {
+                bp.setDeadlockPolicy(DeadlockPolicy.valueOf(words[1].toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown deadlock policy " + words[1] + ", expected one of "
+                        + Arrays.toString(DeadlockPolicy.values()));
+                return true;
+            }
+        }
+        System.out.println("Locks: " + bp.getLockStats());
+        return true;
+    }
 
     public static void main(String argv[]) throws IOException {
 
@@ -597,8 +651,20 @@ public class Parser {
 
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 5000;
+    /** Milliseconds between two recordings of the hot pages of the buffer pool */
+    static final long HOT_PAGES_PERIOD = 60000;
+
+    protected BufferPoolWarmer warmer;
 
     protected void shutdown() {
+        if (warmer != null) {
+            warmer.stopRecording();
+            try {
+                warmer.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
@@ -609,6 +675,12 @@ public class Parser {
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
 
+        // reload the pages that were hot before the last shutdown while
+        // queries already run, and keep the list of hot pages up to date
+        warmer = new BufferPoolWarmer(new File(argv[0] + ".hot"));
+        warmer.startWarmUp();
+        warmer.startRecording(HOT_PAGES_PERIOD);
+
         String queryFile = null;
 
         if (argv.length > 1) {
@@ -682,12 +754,14 @@ public class Parser {
                         break;
                     }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
+                    if (!runAdminCommand(cmd)) {
+                        long startTime = System.currentTimeMillis();
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
+                        long time = System.currentTimeMillis() - startTime;
+                        System.out.printf("----------------\n%.2f seconds\n\n",
+                                ((double) time / 1000.0));
+                    }
 
                     // Grab the remainder of the line
                     line = line.substring(split + 1);
@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * PartitionedFile is a DbFile whose tuples are spread over several partition
+ * files (HeapFiles or BTreeFiles) with the same TupleDesc.  The partition a
+ * tuple belongs to is chosen from the value of a single partitioning field,
+ * either by hashing it or by comparing it against a sorted list of range
+ * bounds.
+ * <p>
+ * Pages always belong to one of the partitions, so the partition files must be
+ * registered with the catalog as well; {@link Catalog#addTable} does this
+ * when it is given a PartitionedFile.
+ *
+ * @see Catalog#addTable
+ */
+public class PartitionedFile implements DbFile {
+
+    /**
+     * Maps values of the partitioning field to partitions.
+     */
+    public interface Scheme {
+        /** @return the partition that holds tuples whose partitioning field is value */
+        int partitionOf(Field value);
+
+        /**
+         * @return true if the given partition may hold a tuple whose
+         *   partitioning field satisfies (field op operand)
+         */
+        boolean mayMatch(int partition, Predicate.Op op, Field operand);
+    }
+
+    /**
+     * Spreads tuples over numPartitions partitions by the hash of the
+     * partitioning field.  Only equality predicates can prune partitions.
+     */
+    public static class HashScheme implements Scheme {
+        private final int numPartitions;
+
+        public HashScheme(int numPartitions) {
+            if (numPartitions < 1)
+                throw new IllegalArgumentException("need at least one partition");
+            this.numPartitions = numPartitions;
+        }
+
+        public int partitionOf(Field value) {
+            return Math.floorMod(value.hashCode(), numPartitions);
+        }
+
+        public boolean mayMatch(int partition, Predicate.Op op, Field operand) {
+            return op != Predicate.Op.EQUALS || partitionOf(operand) == partition;
+        }
+    }
+
+    /**
+     * Partition i holds the values in [bounds[i-1], bounds[i]); the first
+     * partition is unbounded below and the last one unbounded above, so there
+     * is one more partition than there are bounds.
+     */
+    public static class RangeScheme implements Scheme {
+        private final Field[] bounds;
+
+        public RangeScheme(Field[] bounds) {
+            for (int i = 1; i < bounds.length; ++i)
+                if (!bounds[i - 1].compare(Predicate.Op.LESS_THAN, bounds[i]))
+                    throw new IllegalArgumentException("range bounds must be increasing");
+            this.bounds = bounds.clone();
+        }
+
+        public int partitionOf(Field value) {
+            int i = 0;
+            while (i < bounds.length && value.compare(Predicate.Op.GREATER_THAN_OR_EQ, bounds[i]))
+                ++i;
+            return i;
+        }
+
+        public boolean mayMatch(int partition, Predicate.Op op, Field operand) {
+            Field lower = partition == 0 ? null : bounds[partition - 1];
+            Field upper = partition == bounds.length ? null : bounds[partition];
+            switch (op) {
+                case EQUALS:
+                    return partitionOf(operand) == partition;
+                case LESS_THAN:
+                    return lower == null || lower.compare(Predicate.Op.LESS_THAN, operand);
+                case LESS_THAN_OR_EQ:
+                    return lower == null || lower.compare(Predicate.Op.LESS_THAN_OR_EQ, operand);
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQ:
+                    return upper == null || upper.compare(Predicate.Op.GREATER_THAN, operand);
+                default:
+                    return true;
+            }
+        }
+    }
+
+    private final File f;
+    private final DbFile[] partitions;
+    private final int field;
+    private final Scheme scheme;
+
+    /**
+     * Constructs a partitioned file.
+     *
+     * @param f the path that names this table, which gives its id as the
+     *   backing file of a HeapFile does; nothing is stored there
+     * @param partitions the partition files, all with the same TupleDesc
+     * @param field the index of the partitioning field
+     * @param scheme maps values of the partitioning field to an index into
+     *   partitions
+     */
+    public PartitionedFile(File f, DbFile[] partitions, int field, Scheme scheme) {
+        if (partitions.length == 0)
+            throw new IllegalArgumentException("need at least one partition");
+        TupleDesc td = partitions[0].getTupleDesc();
+        for (int i = 0; i < partitions.length; ++i){
+            if (!partitions[i].getTupleDesc().equals(td))
+                throw new IllegalArgumentException("partitions must have the same TupleDesc");
+        }
+        this.f = f;
+        this.partitions = partitions.clone();
+        this.field = field;
+        this.scheme = scheme;
+    }
+
+    /** @return the path that names this table */
+    public File getFile() {
+        return f;
+    }
+
+    public int numPartitions() {
+        return partitions.length;
+    }
+
+    public DbFile getPartition(int i) {
+        return partitions[i];
+    }
+
+    /** @return the index of the partitioning field */
+    public int getPartitionField() {
+        return field;
+    }
+
+    /** @return the total number of pages in all partitions */
+    public int numPages() {
+        int n = 0;
+        for (DbFile p : partitions){
+            if (p instanceof HeapFile)
+                n += ((HeapFile) p).numPages();
+            else if (p instanceof BTreeFile)
+                n += ((BTreeFile) p).numPages();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the partitions that may hold tuples satisfying all of the given
+     * predicates.  Predicates on fields other than the partitioning field do
+     * not prune anything.
+     *
+     * @param preds predicates over the fields of this file's TupleDesc
+     * @return the indexes of the partitions that have to be scanned, in order
+     */
+    public List<Integer> prune(List<Predicate> preds) {
+        ArrayList<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < partitions.length; ++i){
+            boolean keep = true;
+            for (Predicate p : preds)
+                if (p.getField() == field && !scheme.mayMatch(i, p.getOp(), p.getOperand()))
+                    keep = false;
+            if (keep)
+                result.add(i);
+        }
+        return result;
+    }
+
+    private DbFile partitionOf(PageId pid) {
+        for (DbFile p : partitions)
+            if (p.getId() == pid.getTableId())
+                return p;
+        throw new IllegalArgumentException("page does not belong to this file");
+    }
+
+    public Page readPage(PageId pid) {
+        return partitionOf(pid).readPage(pid);
+    }
+
+    public void writePage(Page page) throws IOException {
+        partitionOf(page.getId()).writePage(page);
+    }
+
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return partitions[scheme.partitionOf(t.getField(field))].insertTuple(tid, t);
+    }
+
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (t.getRecordId() == null)
+            throw new DbException("tuple has no RecordId");
+        return partitionOf(t.getRecordId().getPageId()).deleteTuple(tid, t);
+    }
+
+    public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, prune(Collections.<Predicate>emptyList()));
+    }
+
+    /**
+     * Returns an iterator over the tuples of the given partitions only.
+     *
+     * @param tid the transaction doing the scan
+     * @param partitionIndexes the partitions to scan, as returned by {@link #prune}
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Integer> partitionIndexes) {
+        final ArrayList<DbFileIterator> its = new ArrayList<DbFileIterator>();
+        for (int i : partitionIndexes)
+            its.add(partitions[i].iterator(tid));
+        return new AbstractDbFileIterator() {
+            private int cur = -1;
+
+            public void open() throws DbException, TransactionAbortedException {
+                cur = 0;
+                if (!its.isEmpty())
+                    its.get(0).open();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                if (cur < 0)
+                    return null;
+                while (cur < its.size()){
+                    if (its.get(cur).hasNext())
+                        return its.get(cur).next();
+                    its.get(cur).close();
+                    if (++cur < its.size())
+                        its.get(cur).open();
+                }
+                return null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                if (cur >= 0 && cur < its.size())
+                    its.get(cur).close();
+                cur = -1;
+            }
+        };
+    }
+
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return partitions[0].getTupleDesc();
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool evicts when it is full.
+ * The BufferPool reports every page it loads or hands out with
+ * {@link #recordAccess} and every page it drops with {@link #remove}, and asks
+ * for a victim with {@link #chooseVictim}.
+ * <p>
+ * Implementations are called concurrently by the BufferPool and must be
+ * thread safe.
+ *
+ * @see ClockPolicy
+ * @see TwoQueuePolicy
+ */
+public interface ReplacementPolicy {
+
+    /** Tells the policy whether a page may be evicted right now. */
+    interface Candidates {
+        boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Records a reference to a page, loading it into the policy's bookkeeping
+     * if it is not tracked yet.
+     */
+    void recordAccess(PageId pid);
+
+    /** Stops tracking a page that left the buffer pool. */
+    void remove(PageId pid);
+
+    /**
+     * Chooses the page to evict next.  The chosen page is still tracked; the
+     * caller removes it once it has actually been evicted.
+     *
+     * @param candidates tells which pages may be evicted
+     * @return the page to evict, or null if no tracked page can be evicted
+     */
+    PageId chooseVictim(Candidates candidates);
+
+    /**
+     * Tells the policy that the buffer pool was resized.  Policies that size
+     * their bookkeeping by the capacity given to their constructor adjust it.
+     *
+     * @param capacity the new number of pages the policy manages
+     */
+    default void resize(int capacity) {
+    }
+}
@@ -36,10 +36,27 @@ public class SeqScan implements DbIterator {
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
         this.tid = tid;
+        setTable(tableid, tableAlias);
+        this.iterator = file.iterator(tid);
+    }
+
+    /**
+     * Creates a sequential scan over the tuples returned by the given
+     * iterator, which must iterate over (part of) the specified table.  Used
+     * to scan only some partitions of a partitioned table.
+     *
+     * @see PartitionedFile#iterator(TransactionId, java.util.List)
+     */
+    SeqScan(TransactionId tid, int tableid, String tableAlias, DbFileIterator iterator) {
+        this.tid = tid;
+        setTable(tableid, tableAlias);
+        this.iterator = iterator;
+    }
+
+    private void setTable(int tableid, String tableAlias) {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
         this.file = Database.getCatalog().getDatabaseFile(tableid);
-        this.iterator = file.iterator(tid);
     }
 
     /**
@@ -74,9 +91,7 @@ public class SeqScan implements DbIterator {
      */
     public void reset(int tableid, String tableAlias) {
         // some code goes here
-        this.tableid = tableid;
-        this.tableAlias = tableAlias;
-        this.file = Database.getCatalog().getDatabaseFile(tableid);
+        setTable(tableid, tableAlias);
         this.iterator = file.iterator(tid);
     }
 
@@ -79,7 +79,7 @@ public class TableStats {
      */
     private int tableid;
     private int ioCostPerPage;
-    private HeapFile table;
+    private DbFile table;
     private TupleDesc td;
     private int nTup;
 
@@ -97,7 +97,7 @@ public class TableStats {
         // some code goes here
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        this.table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.table = Database.getCatalog().getDatabaseFile(tableid);
         this.td = this.table.getTupleDesc();
         this.nTup = 0;
         this.intHMap = new ConcurrentHashMap<>();
@@ -152,6 +152,10 @@ public class TableStats {
         catch (DbException e){
             e.printStackTrace();
         }
+        finally {
+            //release the pin on the last page read
+            tI.close();
+        }
     }
 
     /**
@@ -168,7 +172,14 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return table.numPages() * ioCostPerPage;
+        int numPages;
+        if (table instanceof PartitionedFile)
+            numPages = ((PartitionedFile) table).numPages();
+        else if (table instanceof BTreeFile)
+            numPages = ((BTreeFile) table).numPages();
+        else
+            numPages = ((HeapFile) table).numPages();
+        return numPages * ioCostPerPage;
     }
 
     /**
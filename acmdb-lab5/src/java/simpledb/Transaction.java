@@ -8,16 +8,87 @@ import java.io.*;
  */
 
 public class Transaction {
+
+    /** How a transaction is kept from interfering with concurrent ones. */
+    public enum Mode {
+        /** Lock the pages it reads and writes until it completes */
+        LOCKING,
+        /** Read a snapshot as of its start without locks; cannot update anything */
+        SNAPSHOT,
+        /** Read a snapshot and update private pages without locks; validated at commit */
+        OPTIMISTIC
+    }
+
     private final TransactionId tid;
+    private final Mode mode;
+    private volatile IsolationLevel isolation = IsolationLevel.SERIALIZABLE;
     volatile boolean started = false;
 
     public Transaction() {
-        tid = new TransactionId();
+        this(Mode.LOCKING);
+    }
+
+    /**
+     * @param readOnly true to run the transaction on a snapshot of the
+     *   database as of its start, without taking any locks
+     * @see BufferPool#beginSnapshot
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly ? Mode.SNAPSHOT : Mode.LOCKING);
+    }
+
+    /**
+     * @param mode how the transaction runs
+     * @see BufferPool#beginSnapshot
+     * @see BufferPool#beginOptimistic
+     */
+    public Transaction(Mode mode) {
+        this(mode, new TransactionId());
+    }
+
+    private Transaction(Mode mode, TransactionId tid) {
+        this.tid = tid;
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** @return true if the transaction runs on a snapshot and cannot update anything */
+    public boolean isReadOnly() {
+        return mode == Mode.SNAPSHOT;
+    }
+
+    public IsolationLevel getIsolationLevel() {
+        return isolation;
+    }
+
+    /**
+     * Sets the isolation level of a locking transaction, for the reads it
+     * makes from now on.  Snapshot and optimistic transactions take no read
+     * locks, so the setting does not apply to them.
+     *
+     * @see BufferPool#setIsolationLevel
+     */
+    public void setIsolationLevel(IsolationLevel isolation) {
+        this.isolation = isolation;
+        if (started && mode == Mode.LOCKING)
+            Database.getBufferPool().setIsolationLevel(tid, isolation);
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (mode == Mode.SNAPSHOT)
+            Database.getBufferPool().beginSnapshot(tid);
+        else if (mode == Mode.OPTIMISTIC)
+            Database.getBufferPool().beginOptimistic(tid);
+        else if (isolation != IsolationLevel.SERIALIZABLE)
+            Database.getBufferPool().setIsolationLevel(tid, isolation);
+        //a read-only transaction changes nothing to recover, so it is not logged
+        if (mode == Mode.SNAPSHOT)
+            return;
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,7 +100,32 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
+    /**
+     * Validates an optimistic transaction before it commits; see
+     * {@link BufferPool#validate}.  A transaction that fails is aborted.
+     * Does nothing for the other modes.
+     *
+     * @throws TransactionAbortedException if the transaction failed
+     *   validation and was aborted
+     */
+    public void validate() throws TransactionAbortedException, DbException, IOException {
+        if (!started || mode != Mode.OPTIMISTIC)
+            return;
+        try {
+            Database.getBufferPool().validate(tid);
+        } catch (TransactionAbortedException | DbException e) {
+            transactionComplete(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Finish the transaction.  An optimistic transaction that was not
+     * validated yet is validated first.
+     *
+     * @throws ValidationException if the transaction failed validation and
+     *   was aborted instead
+     */
     public void commit() throws IOException {
         transactionComplete(false);
     }
@@ -39,27 +135,59 @@ public class Transaction {
         transactionComplete(true);
     }
 
+    /**
+     * A unit of background work (compaction, vacuum, ...) that runs inside
+     * its own transaction.
+     * @see #runWithRetry(Step)
+     */
+    interface Step<T> {
+        T run(TransactionId tid) throws DbException, IOException, TransactionAbortedException;
+    }
+
+    /**
+     * Run step in a new transaction and commit it.  If the transaction is
+     * aborted (e.g. it lost a deadlock against a foreground transaction) the
+     * step is retried in a fresh transaction, which keeps the age of the
+     * first one so that it is not starved under WAIT_DIE or WOUND_WAIT; any
+     * other failure aborts the transaction and is rethrown.
+     *
+     * @param step the work to run
+     * @return the result of the step
+     */
+    static <T> T runWithRetry(Step<T> step) throws DbException, IOException {
+        TransactionId tid = new TransactionId();
+        while (true) {
+            Transaction t = new Transaction(Mode.LOCKING, tid);
+            t.start();
+            try {
+                T result = step.run(t.getId());
+                t.commit();
+                return result;
+            } catch (TransactionAbortedException e) {
+                t.abort();
+                tid = new TransactionId(tid);
+            } catch (DbException | IOException e) {
+                t.abort();
+                throw e;
+            }
+        }
+    }
+
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
+            //the buffer pool writes tid's dirty pages and its COMMIT record,
+            //which one force of the log covers; an abort is logged after the
+            //cached pages are restored, so that no dirty page of tid is
+            //stolen after the rollback
+            //a commit that fails validation was aborted, so it is complete too
             try {
                 Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
+            } finally {
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
             }
-
-            //setting this here means we could possibly write multiple abort records -- OK?
-            started = false;
         }
     }
 }
@@ -12,15 +12,33 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    //the id of the first attempt of a restarted transaction, which keeps
+    //its age under the WAIT_DIE and WOUND_WAIT deadlock policies
+    final long timestamp;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
+    }
+
+    /**
+     * Creates the id of a transaction that restarts an aborted one: a new
+     * id, with the age of the aborted transaction's first attempt.
+     */
+    TransactionId(TransactionId aborted) {
+        myid = counter.getAndIncrement();
+        timestamp = aborted.timestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return true if this transaction started before other, counting restarts from their first attempt */
+    boolean isOlderThan(TransactionId other) {
+        return timestamp != other.timestamp ? timestamp < other.timestamp : myid < other.myid;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
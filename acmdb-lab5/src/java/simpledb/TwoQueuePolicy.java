@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement, a constant time approximation of LRU-2.  A page referenced
+ * for the first time enters the FIFO queue A1in; when it falls out of A1in
+ * its id is remembered for a while in the ghost queue A1out.  Only a page that
+ * is referenced again while in A1out (i.e. that has been referenced twice)
+ * enters the LRU queue Am.  Pages that are touched once, such as the pages of
+ * a large scan, therefore never push the frequently used pages out of Am.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+    private int maxA1in;
+    private int maxA1out;
+
+    /**
+     * @param capacity the number of pages in the buffer pool; A1in is kept to
+     *   a quarter of it and A1out remembers half of it
+     */
+    public TwoQueuePolicy(int capacity) {
+        resize(capacity);
+    }
+
+    public synchronized void resize(int capacity) {
+        this.maxA1in = Math.max(1, capacity / 4);
+        this.maxA1out = Math.max(1, capacity / 2);
+        Iterator<PageId> it = a1out.iterator();
+        for (int n = a1out.size(); n > maxA1out; --n) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        if (am.remove(pid)) {
+            am.add(pid);
+        } else if (a1in.contains(pid)) {
+            // correlated references while in A1in do not count
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void remove(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > maxA1out) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Candidates candidates) {
+        PageId victim = null;
+        if (a1in.size() > maxA1in || am.isEmpty())
+            victim = firstEvictable(a1in, candidates);
+        if (victim == null)
+            victim = firstEvictable(am, candidates);
+        if (victim == null)
+            victim = firstEvictable(a1in, candidates);
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Candidates candidates) {
+        for (PageId pid : queue)
+            if (candidates.canEvict(pid))
+                return pid;
+        return null;
+    }
+}
@@ -0,0 +1,14 @@
+package simpledb;
+
+/**
+ * Exception that is thrown when an optimistic transaction is committed
+ * without calling {@link Transaction#validate} first, and fails validation.
+ * The transaction has been aborted; the cause says why.
+ */
+public class ValidationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ValidationException(TransactionId tid, Throwable cause) {
+        super("transaction " + tid + " failed validation and was aborted", cause);
+    }
+}
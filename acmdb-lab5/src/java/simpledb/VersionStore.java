@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * VersionStore keeps the committed images of pages that snapshot readers may
+ * still need, once the page in the buffer pool or on disk no longer holds them.
+ * <p>
+ * Commits are numbered by a logical clock.  A snapshot transaction reads the
+ * database as of the clock value when it began: for every page, the image that
+ * was committed then.  An image is kept as a version as soon as the page is
+ * written to disk by an uncommitted transaction, since neither the disk nor the
+ * cache (once the page is evicted) holds it any more; the version is open while
+ * its writer runs, ends at the writer's commit timestamp, and is dropped when
+ * the writer aborts.  Ended versions are garbage-collected once no running
+ * snapshot began before they ended.
+ * <p>
+ * While snapshots run, the store also remembers when each page was last
+ * committed, so an optimistic transaction can check at commit that nothing it
+ * read changed after its snapshot.
+ * <p>
+ * The buffer pool holds the lock of a page's shard while it looks a version
+ * up, while it keeps one, and while it changes the before image of a cached
+ * page, so a snapshot reader never sees a page between the two.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** A committed page image, valid until the commit with timestamp end. */
+    private static class Version {
+        final TransactionId writer;
+        final Page image;
+        long end = Long.MAX_VALUE;
+
+        Version(TransactionId writer, Page image) {
+            this.writer = writer;
+            this.image = image;
+        }
+    }
+
+    /** Timestamp of the last commit. */
+    private long clock;
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** Number of running snapshots by start timestamp. */
+    private final TreeMap<Long, Integer> running = new TreeMap<>();
+    //read without the lock by lookup, to tell pages with no versions at once
+    private final ConcurrentHashMap<PageId, ArrayList<Version>> versions = new ConcurrentHashMap<>();
+    /** The pages each running writer kept a version of. */
+    private final HashMap<TransactionId, Set<PageId>> written = new HashMap<>();
+    /** Timestamp of the last commit of each page written since the oldest running snapshot. */
+    private final HashMap<PageId, Long> lastCommit = new HashMap<>();
+    private int count;
+
+    /** Starts a snapshot for tid, as of the last commit. */
+    synchronized void begin(TransactionId tid) {
+        if (snapshots.containsKey(tid))
+            return;
+        snapshots.put(tid, clock);
+        running.merge(clock, 1, Integer::sum);
+    }
+
+    /** @return the timestamp tid reads as of, or null if it is not a snapshot transaction */
+    Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** Ends the snapshot of tid, if any, and drops the versions only it needed. */
+    void end(TransactionId tid) {
+        if (!snapshots.containsKey(tid))
+            return;
+        synchronized (this) {
+            Long ts = snapshots.remove(tid);
+            if (ts == null)
+                return;
+            if (running.merge(ts, -1, Integer::sum) == 0)
+                running.remove(ts);
+            collect();
+        }
+    }
+
+    /**
+     * Keeps the committed image of a page the uncommitted transaction writer
+     * is about to write out, unless writer already kept one for the page.
+     */
+    synchronized void keep(TransactionId writer, PageId pid, Page committed) {
+        Set<PageId> pages = written.computeIfAbsent(writer, t -> new HashSet<>());
+        if (!pages.add(pid))
+            return;
+        versions.computeIfAbsent(pid, p -> new ArrayList<>()).add(new Version(writer, committed));
+        ++count;
+    }
+
+    /**
+     * Looks up the image of a page committed as of timestamp ts.
+     *
+     * @return the image, or null if the page as last committed is the one
+     *   readers see at ts
+     */
+    Page lookup(PageId pid, long ts) {
+        //most pages have no versions; the caller holds the lock of the page's
+        //shard, which a version is kept under, so none is missed here
+        if (!versions.containsKey(pid))
+            return null;
+        synchronized (this) {
+            return visible(versions.get(pid), ts);
+        }
+    }
+
+    private static Page visible(ArrayList<Version> chain, long ts) {
+        if (chain == null)
+            return null;
+        //the oldest version that was still valid at ts; among the open ones
+        //the first kept, which is older than the others
+        Version visible = null;
+        for (Version v : chain) {
+            if (v.end > ts && (visible == null || v.end < visible.end))
+                visible = v;
+        }
+        return visible == null ? null : visible.image;
+    }
+
+    /**
+     * Records the commit of tid, once the pool holds its pages as committed:
+     * the versions tid kept end now.
+     *
+     * @return the commit timestamp
+     */
+    synchronized long commit(TransactionId tid) {
+        long ts = ++clock;
+        Set<PageId> pages = written.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                for (Version v : versions.get(pid)) {
+                    if (v.writer.equals(tid))
+                        v.end = ts;
+                }
+                if (!running.isEmpty())
+                    lastCommit.put(pid, ts);
+            }
+            collect();
+        }
+        return ts;
+    }
+
+    /**
+     * Drops the versions tid kept, once its pages are rolled back.
+     */
+    synchronized void abort(TransactionId tid) {
+        Set<PageId> pages = written.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            remove(pid, v -> v.writer.equals(tid));
+    }
+
+    /**
+     * @return true if a transaction that committed after timestamp ts wrote
+     *   any of the given pages
+     */
+    synchronized boolean changedSince(Collection<PageId> pids, long ts) {
+        for (PageId pid : pids) {
+            Long last = lastCommit.get(pid);
+            if (last != null && last > ts)
+                return true;
+        }
+        return false;
+    }
+
+    /** Drops the ended versions and commit times that no running snapshot can read. */
+    private void collect() {
+        long oldest = running.isEmpty() ? clock : running.firstKey();
+        for (PageId pid : new ArrayList<>(versions.keySet()))
+            remove(pid, v -> v.end <= oldest);
+        lastCommit.values().removeIf(ts -> ts <= oldest);
+    }
+
+    private void remove(PageId pid, Predicate<Version> dead) {
+        ArrayList<Version> chain = versions.get(pid);
+        int before = chain.size();
+        chain.removeIf(dead);
+        count -= before - chain.size();
+        if (chain.isEmpty())
+            versions.remove(pid);
+    }
+
+    /** @return the number of page versions kept */
+    synchronized int size() {
+        return count;
+    }
+}
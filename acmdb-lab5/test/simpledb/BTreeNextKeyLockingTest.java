@@ -236,6 +236,54 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	@Test
+	public void insertOutsideRangeProceeds() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+
+		// read the keys of the left-most leaf page, and make room on it by
+		// deleting its last tuple
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY)).getRootId();
+		BTreeLeafPage leaf = bf.findLeafPage(tid, rootId, Permissions.READ_ONLY, null);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = leaf.iterator();
+		while(it.hasNext())
+			tuples.add(it.next());
+		Tuple last = tuples.get(tuples.size() - 1);
+		Database.getBufferPool().deleteTuple(tid, last);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// scan the range of the third key of the page
+		int key = ((IntField) tuples.get(2).getField(0)).getValue();
+		int lastKey = ((IntField) last.getField(0)).getValue();
+		assertTrue(lastKey > key + 1);
+		DbFileIterator fit = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		fit.open();
+		while(fit.hasNext())
+			fit.next();
+		fit.close();
+
+		// an insert past the range goes into the same leaf page without waiting
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bf, lastKey, 1);
+		bw1.start();
+		bw1.join(POLL_INTERVAL * 10);
+		assertTrue(bw1.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+
+		// an insert into the range waits for the scan
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw2 = new BTreeWriter(tid2, bf, key, 1);
+		bw2.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(bw2.succeeded());
+		Database.getBufferPool().transactionComplete(tid);
+		bw2.join(POLL_INTERVAL * 10);
+		assertTrue(bw2.succeeded());
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
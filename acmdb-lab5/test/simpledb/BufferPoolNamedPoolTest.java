@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolNamedPoolTest extends SimpleDbTestBase {
+    private HeapFile small;
+    private HeapFile big;
+
+    @Before public void setUp() throws Exception {
+        small = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+    }
+
+    /**
+     * Pages of a table in its own pool are not evicted by another table's
+     * pages, however many of them are read
+     */
+    @Test public void poolsDoNotEvictEachOther() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.addPool("keep", 2, TwoQueuePolicy::new);
+        Database.getCatalog().setBufferPool(small.getId(), "keep");
+
+        TransactionId tid = new TransactionId();
+        Page p0 = bp.getPage(tid, new HeapPageId(small.getId(), 0), Permissions.READ_ONLY);
+        Page p1 = bp.getPage(tid, new HeapPageId(small.getId(), 1), Permissions.READ_ONLY);
+        for (int i = 0; i < big.numPages(); ++i)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        assertSame(p0, bp.getPage(tid, new HeapPageId(small.getId(), 0), Permissions.READ_ONLY));
+        assertSame(p1, bp.getPage(tid, new HeapPageId(small.getId(), 1), Permissions.READ_ONLY));
+        assertEquals(6, bp.getResidentPages().size());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Each pool has its own capacity
+     */
+    @Test public void capacityIsPerPool() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.addPool("keep", 1, ClockPolicy::new);
+        Database.getCatalog().setBufferPool(small.getId(), "keep");
+        assertEquals(1, bp.getNumPages("keep"));
+        assertEquals(BufferPool.DEFAULT_PAGES, bp.getNumPages());
+
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, new HeapPageId(small.getId(), 0), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(small.getId(), 1), Permissions.READ_ONLY);
+            fail("expected the keep pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.resize("keep", 2);
+        bp.getPage(tid, new HeapPageId(small.getId(), 1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A scan goes through a ring when its table does not fit in the pool the
+     * table is assigned to, whatever the size of the default pool
+     */
+    @Test public void scanStrategyUsesTablePool() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.addPool("keep", 1, ClockPolicy::new);
+        Database.getCatalog().setBufferPool(small.getId(), "keep");
+        assertEquals(BufferPool.AccessStrategy.SEQUENTIAL_SCAN, bp.scanStrategy(small.getId(), small.numPages()));
+
+        bp = Database.resetBufferPool(4);
+        bp.addPool("large", 40, ClockPolicy::new);
+        Database.getCatalog().setBufferPool(big.getId(), "large");
+        assertEquals(BufferPool.AccessStrategy.NORMAL, bp.scanStrategy(big.getId(), big.numPages()));
+    }
+
+    /**
+     * The schema declares pools and assigns tables and B+ tree internal pages
+     * to them
+     */
+    @Test public void schemaAssignsPools() throws Exception {
+        File schema = File.createTempFile("schema", ".txt");
+        schema.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(schema));
+        out.println("pool keep 8 2q");
+        out.println("dim (id int pk, name string) pool keep");
+        out.println("fact (id int, dim int) index pool keep");
+        out.println("other (id int)");
+        out.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        assertTrue(Database.getBufferPool().getPoolNames().contains("keep"));
+        assertEquals(8, Database.getBufferPool().getNumPages("keep"));
+        Catalog catalog = Database.getCatalog();
+        int dim = catalog.getTableId("dim");
+        int fact = catalog.getTableId("fact");
+        int other = catalog.getTableId("other");
+        assertEquals("keep", catalog.getBufferPoolName(new HeapPageId(dim, 0)));
+        assertEquals("keep", catalog.getBufferPoolName(new BTreePageId(fact, 1, BTreePageId.INTERNAL)));
+        assertEquals("keep", catalog.getBufferPoolName(new BTreePageId(fact, 0, BTreePageId.ROOT_PTR)));
+        assertNull(catalog.getBufferPoolName(new BTreePageId(fact, 2, BTreePageId.LEAF)));
+        assertNull(catalog.getBufferPoolName(new HeapPageId(other, 0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolNamedPoolTest.class);
+    }
+}
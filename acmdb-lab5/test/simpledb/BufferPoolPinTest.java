@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+    }
+
+    private PageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    /**
+     * Pinned pages are not evicted until every pin is released
+     */
+    @Test public void pinnedPagesStay() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        Page p0 = bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        assertSame(p0, bp.pinPage(tid, page(0), Permissions.READ_ONLY));
+        for (int i = 1; i < 6; ++i)
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        assertSame(p0, bp.getPage(tid, page(0), Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, page(0));
+        assertTrue(bp.isPinned(page(0)));
+        bp.unpinPage(tid, page(0));
+        assertFalse(bp.isPinned(page(0)));
+        for (int i = 1; i < 6; ++i)
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        assertNotSame(p0, bp.getPage(tid, page(0), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A pool full of pinned pages cannot load more pages; completing the
+     * transaction releases its pins
+     */
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, page(2), Permissions.READ_ONLY);
+            fail("expected the pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+        assertFalse(bp.isPinned(page(0)));
+        assertFalse(bp.isPinned(page(1)));
+        tid = new TransactionId();
+        bp.getPage(tid, page(2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Iterators pin the page they read and release it as they advance
+     */
+    @Test public void iteratorsPinCurrentPage() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 504; ++i)
+            it.next();
+        assertTrue(bp.isPinned(page(0)));
+        it.hasNext();
+        assertFalse(bp.isPinned(page(0)));
+        assertTrue(bp.isPinned(page(1)));
+        it.close();
+        assertFalse(bp.isPinned(page(1)));
+
+        DbFileIterator bit = bf.iterator(tid);
+        bit.open();
+        PageId leaf = bit.next().getRecordId().getPageId();
+        assertTrue(bp.isPinned(leaf));
+        bit.close();
+        assertFalse(bp.isPinned(leaf));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolShardTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4 * BufferPool.MIN_SHARD_PAGES;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * (POOL_PAGES + 8), null, null);
+    }
+
+    /**
+     * The capacity is shared by the shards: every page of a full pool may be
+     * pinned, whichever shards the pages hash to, and no page more.
+     */
+    @Test public void capacityIsPoolWide() throws Exception {
+        BufferPool bp = new BufferPool(POOL_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < POOL_PAGES; ++i)
+            bp.pinPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), POOL_PAGES), Permissions.READ_ONLY);
+            fail("expected the pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * Shrinking a pool in use evicts everything but the pinned pages, and a
+     * pool may grow back afterwards
+     */
+    @Test public void resizeWhileInUse() throws Exception {
+        BufferPool bp = new BufferPool(POOL_PAGES);
+        TransactionId tid = new TransactionId();
+        Page[] pages = new Page[POOL_PAGES];
+        for (int i = 0; i < POOL_PAGES; ++i)
+            pages[i] = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.pinPage(tid, pages[0].getId(), Permissions.READ_ONLY);
+        bp.pinPage(tid, pages[1].getId(), Permissions.READ_ONLY);
+
+        bp.resize(2);
+        assertEquals(2, bp.getNumPages());
+        assertSame(pages[0], bp.getPage(tid, pages[0].getId(), Permissions.READ_ONLY));
+        assertSame(pages[1], bp.getPage(tid, pages[1].getId(), Permissions.READ_ONLY));
+        try {
+            bp.getPage(tid, pages[2].getId(), Permissions.READ_ONLY);
+            fail("expected the shrunk pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            bp.resize(1);
+            fail("expected the pinned pages to keep the pool over its new size");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(1, bp.getNumPages());
+
+        bp.unpinPage(tid, pages[0].getId());
+        bp.unpinPage(tid, pages[1].getId());
+        bp.resize(POOL_PAGES);
+        Page first = bp.getPage(tid, pages[0].getId(), Permissions.READ_ONLY);
+        for (int i = 1; i < POOL_PAGES; ++i)
+            bp.getPage(tid, pages[i].getId(), Permissions.READ_ONLY);
+        assertSame(first, bp.getPage(tid, pages[0].getId(), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Threads reading different pages through a small pool all get their pages.
+     */
+    @Test public void concurrentReaders() throws Exception {
+        final BufferPool bp = new BufferPool(POOL_PAGES);
+        final int numPages = hf.numPages();
+        Thread[] threads = new Thread[8];
+        final Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads.length; ++t) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    for (int i = 0; i < 10 * numPages; ++i) {
+                        PageId pid = new HeapPageId(hf.getId(), (i + offset) % numPages);
+                        assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+                    }
+                    bp.transactionComplete(tid);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolShardTest.class);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolStealTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Deletes the first n tuples of every page of the file */
+    private void deleteFromEveryPage(BufferPool bp, TransactionId tid, int n) throws Exception {
+        for (int i = 0; i < hf.numPages(); ++i) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+            Iterator<Tuple> it = p.iterator();
+            for (int j = 0; j < n; ++j)
+                tuples.add(it.next());
+            for (Tuple t : tuples)
+                bp.deleteTuple(tid, t);
+        }
+    }
+
+    /**
+     * A transaction that dirties more pages than the pool holds commits
+     */
+    @Test public void largeTransactionCommits() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        deleteFromEveryPage(bp, tid, 4);
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(500 * 6, countTuples(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages stolen from an aborting transaction are restored from the log
+     */
+    @Test public void abortUndoesStolenPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        deleteFromEveryPage(bp, tid, 4);
+        bp.transactionComplete(tid, false);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        assertEquals(504 * 6, countTuples(tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolStealTest.class);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolWarmerTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BTreeFile bf;
+    private File hot;
+
+    @Before public void setUp() throws Exception {
+        bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        hot = File.createTempFile("hotpages", ".dat");
+        hot.deleteOnExit();
+    }
+
+    /** Reads the root, first leaf and a few heap pages into a fresh pool */
+    private List<PageId> touchPages(BufferPool bp) throws Exception {
+        TransactionId tid = new TransactionId();
+        ArrayList<PageId> touched = new ArrayList<PageId>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        it.next();
+        it.close();
+        for (int i = 3; i < 6; ++i) {
+            PageId pid = new HeapPageId(hf.getId(), i);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            touched.add(pid);
+        }
+        bp.transactionComplete(tid);
+        touched.addAll(bp.getResidentPages());
+        return touched;
+    }
+
+    /**
+     * Recorded pages are reloaded after the pool is reset, heap and B+ tree
+     * pages alike
+     */
+    @Test public void warmUpReloadsRecordedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        List<PageId> touched = touchPages(bp);
+        BufferPoolWarmer warmer = new BufferPoolWarmer(hot);
+        warmer.save();
+        assertEquals(new HashSet<PageId>(bp.getResidentPages()), new HashSet<PageId>(warmer.load()));
+
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertTrue(bp.getResidentPages().isEmpty());
+        warmer.startWarmUp().join();
+        HashSet<PageId> resident = new HashSet<PageId>(bp.getResidentPages());
+        for (PageId pid : touched)
+            assertTrue(resident.contains(pid));
+        boolean sawBTreePage = false;
+        for (PageId pid : resident)
+            sawBTreePage |= pid instanceof BTreePageId;
+        assertTrue(sawBTreePage);
+    }
+
+    /**
+     * Warm-up stops when the pool is full and never evicts pages
+     */
+    @Test public void warmUpStopsWhenPoolIsFull() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); ++i)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        BufferPoolWarmer warmer = new BufferPoolWarmer(hot);
+        warmer.save();
+
+        bp = Database.resetBufferPool(4);
+        PageId last = new HeapPageId(hf.getId(), hf.numPages() - 1);
+        bp.getPage(new TransactionId(), last, Permissions.READ_ONLY);
+        assertEquals(3, warmer.warmUp());
+        assertEquals(4, bp.getResidentPages().size());
+        assertTrue(bp.getResidentPages().contains(last));
+    }
+
+    /**
+     * Pages of tables removed since the list was recorded are skipped
+     */
+    @Test public void warmUpSkipsUnknownTables() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        touchPages(bp);
+        BufferPoolWarmer warmer = new BufferPoolWarmer(hot);
+        warmer.save();
+
+        Database.reset();
+        SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(0, warmer.warmUp());
+        assertTrue(bp.getResidentPages().isEmpty());
+    }
+
+    /**
+     * A page a transaction updates, writes back and evicts while the warmer
+     * reads it is read again, rather than cached as the stale image
+     */
+    @Test public void prefetchDuringUpdate() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile racing = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            boolean raced;
+
+            public Page readPage(PageId pid) {
+                Page page = super.readPage(pid);
+                if (!raced) {
+                    raced = true;
+                    try {
+                        TransactionId tid = new TransactionId();
+                        HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+                        bp.deleteTuple(tid, p.iterator().next());
+                        bp.transactionComplete(tid, true);
+                        bp.discardPage(pid);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return page;
+            }
+        };
+        Database.getCatalog().addTable(racing, "racing");
+        PageId pid = new HeapPageId(racing.getId(), 0);
+        assertTrue(bp.prefetchPage(pid));
+        HeapPage cached = (HeapPage) bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertEquals(503, cached.getNumUsedSlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolWarmerTest.class);
+    }
+}
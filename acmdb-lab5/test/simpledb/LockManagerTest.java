@@ -0,0 +1,391 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    private static final long TIMEOUT = 100;
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2, tid3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /** A thread that requests a lock and records the order of grants */
+    private class Waiter extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+        final List<TransactionId> order;
+        volatile boolean granted;
+        volatile boolean aborted;
+
+        Waiter(TransactionId tid, PageId pid, boolean exclusive, List<TransactionId> order) {
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+            this.order = order;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, pid, exclusive);
+                order.add(tid);
+                granted = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    private Waiter startWaiter(TransactionId tid, boolean exclusive, List<TransactionId> order)
+            throws InterruptedException {
+        return startWaiter(tid, p0, exclusive, order);
+    }
+
+    private Waiter startWaiter(TransactionId tid, PageId pid, boolean exclusive, List<TransactionId> order)
+            throws InterruptedException {
+        Waiter w = new Waiter(tid, pid, exclusive, order);
+        w.start();
+        Thread.sleep(TIMEOUT);
+        return w;
+    }
+
+    /**
+     * A reader arriving after a queued writer waits behind it
+     */
+    @Test public void readerDoesNotOvertakeWriter() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, false);
+        Waiter writer = startWaiter(tid2, true, order);
+        Waiter reader = startWaiter(tid3, false, order);
+        assertFalse(writer.granted);
+        assertFalse(reader.granted);
+        assertEquals(Thread.State.WAITING, writer.getState());
+
+        lm.releaseAll(tid1);
+        writer.join(TIMEOUT * 10);
+        assertTrue(writer.granted);
+        assertTrue(lm.holdsExclusive(tid2, p0));
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.granted);
+
+        lm.release(tid2, p0);
+        reader.join(TIMEOUT * 10);
+        assertTrue(reader.granted);
+        assertEquals(tid2, order.get(0));
+        assertEquals(tid3, order.get(1));
+    }
+
+    /**
+     * Waiting readers are granted together when the writer releases
+     */
+    @Test public void readersGrantedTogether() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, true);
+        Waiter r2 = startWaiter(tid2, false, order);
+        Waiter r3 = startWaiter(tid3, false, order);
+        lm.releaseAll(tid1);
+        r2.join(TIMEOUT * 10);
+        r3.join(TIMEOUT * 10);
+        assertTrue(r2.granted);
+        assertTrue(r3.granted);
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertTrue(lm.holdsLock(tid3, p0));
+    }
+
+    /**
+     * An upgrade waits for the other readers only, ahead of queued writers
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, false);
+        lm.acquire(tid2, p0, false);
+        Waiter writer = startWaiter(tid3, true, order);
+        Waiter upgrade = startWaiter(tid1, true, order);
+        assertFalse(upgrade.granted);
+
+        lm.releaseAll(tid2);
+        upgrade.join(TIMEOUT * 10);
+        assertTrue(upgrade.granted);
+        assertTrue(lm.holdsExclusive(tid1, p0));
+        assertFalse(writer.granted);
+        lm.releaseAll(tid1);
+        writer.join(TIMEOUT * 10);
+        assertTrue(writer.granted);
+    }
+
+    /**
+     * The sole reader upgrades at once
+     */
+    @Test public void soleReaderUpgrades() throws Exception {
+        lm.acquire(tid1, p0, false);
+        lm.acquire(tid1, p0, true);
+        assertTrue(lm.holdsExclusive(tid1, p0));
+        assertEquals(Collections.singleton(p0), lm.getLockedPages(tid1));
+        lm.releaseAll(tid1);
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertTrue(lm.getLockedPages(tid1).isEmpty());
+    }
+
+    /**
+     * Two readers upgrading at once deadlock; the second one is aborted and
+     * the first granted once the second releases
+     */
+    @Test public void upgradeDeadlockAborts() throws Exception {
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, false);
+        lm.acquire(tid2, p0, false);
+        Waiter first = startWaiter(tid1, true, order);
+        try {
+            lm.acquire(tid2, p0, true);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(first.granted);
+        lm.releaseAll(tid2);
+        first.join(TIMEOUT * 10);
+        assertTrue(first.granted);
+        assertFalse(first.aborted);
+    }
+
+    /**
+     * Under wait-die an older transaction waits for a younger one, and a
+     * younger one is aborted instead of waiting for an older one
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setPolicy(DeadlockPolicy.WAIT_DIE);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid2, p0, true);
+        Waiter older = startWaiter(tid1, true, order);
+        assertFalse(older.granted);
+        assertFalse(older.aborted);
+        try {
+            lm.acquire(tid3, p0, false);
+            fail("expected the younger transaction to die");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(tid2);
+        older.join(TIMEOUT * 10);
+        assertTrue(older.granted);
+        assertEquals(1, lm.getStats().getAborts());
+        assertEquals(1, lm.getStats().getWaits());
+    }
+
+    /**
+     * Under wound-wait an older transaction aborts a younger waiting one
+     * it conflicts with, and a wounded running one at its next request
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setPolicy(DeadlockPolicy.WOUND_WAIT);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid2, p0, true);
+        lm.acquire(tid3, p1, true);
+        Waiter young = startWaiter(tid3, p0, true, order);
+        assertFalse(young.granted);
+        assertFalse(young.aborted);
+
+        Waiter old = startWaiter(tid1, p0, true, order);
+        young.join(TIMEOUT * 10);
+        assertTrue(young.aborted);
+        assertFalse(old.granted);
+        try {
+            lm.acquire(tid2, p1, false);
+            fail("expected the wounded transaction to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(tid2);
+        lm.releaseAll(tid3);
+        old.join(TIMEOUT * 10);
+        assertTrue(old.granted);
+        assertEquals(2, lm.getStats().getAborts());
+        assertEquals(2, lm.getStats().getWounds());
+        assertEquals(0, lm.getStats().getDeadlocks());
+    }
+
+    /**
+     * A wounded transaction that commits without another lock request is
+     * never aborted, and is not counted as an abort
+     */
+    @Test public void woundedCommitIsNotAnAbort() throws Exception {
+        lm.setPolicy(DeadlockPolicy.WOUND_WAIT);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid2, p0, true);
+        Waiter old = startWaiter(tid1, p0, true, order);
+        assertFalse(old.granted);
+        lm.releaseAll(tid2);
+        old.join(TIMEOUT * 10);
+        assertTrue(old.granted);
+        assertEquals(1, lm.getStats().getWounds());
+        assertEquals(0, lm.getStats().getAborts());
+    }
+
+    /**
+     * A restarted transaction keeps the age of its first attempt, so under
+     * wait-die it waits for the younger transactions that started since
+     */
+    @Test public void restartKeepsAge() throws Exception {
+        lm.setPolicy(DeadlockPolicy.WAIT_DIE);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        TransactionId restarted = new TransactionId(tid1);
+        assertTrue(restarted.getId() > tid3.getId());
+        lm.acquire(tid3, p0, true);
+        Waiter w = startWaiter(restarted, true, order);
+        assertFalse(w.aborted);
+        lm.releaseAll(tid3);
+        w.join(TIMEOUT * 10);
+        assertTrue(w.granted);
+        assertEquals(0, lm.getStats().getAborts());
+    }
+
+    /**
+     * The background detector aborts the transaction of a cycle that holds
+     * the fewest locks
+     */
+    @Test public void detectorBreaksCycle() throws Exception {
+        lm.setPolicy(DeadlockPolicy.DETECTOR);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, true);
+        lm.acquire(tid1, new HeapPageId(1, 2), true);
+        lm.acquire(tid2, p1, true);
+        Waiter w1 = startWaiter(tid1, p1, true, order);
+        Waiter w2 = startWaiter(tid2, p0, true, order);
+        w2.join(LockManager.DETECTOR_PERIOD * 20);
+        assertTrue(w2.aborted);
+        assertFalse(w1.aborted);
+        lm.releaseAll(tid2);
+        w1.join(TIMEOUT * 10);
+        assertTrue(w1.granted);
+        LockStats stats = lm.getStats();
+        assertEquals(DeadlockPolicy.DETECTOR, stats.getPolicy());
+        assertEquals(1, stats.getDeadlocks());
+        assertEquals(1, stats.getAborts());
+        assertEquals(2, stats.getWaits());
+    }
+
+    /**
+     * Table intention modes combine as in the compatibility matrix
+     */
+    @Test public void modes() {
+        assertTrue(LockManager.Mode.IS.compatible(LockManager.Mode.SIX));
+        assertTrue(LockManager.Mode.IX.compatible(LockManager.Mode.IX));
+        assertFalse(LockManager.Mode.IX.compatible(LockManager.Mode.S));
+        assertFalse(LockManager.Mode.SIX.compatible(LockManager.Mode.SIX));
+        assertEquals(LockManager.Mode.SIX, LockManager.Mode.S.join(LockManager.Mode.IX));
+        assertEquals(LockManager.Mode.X, LockManager.Mode.IX.join(LockManager.Mode.X));
+        assertTrue(LockManager.Mode.SIX.covers(LockManager.Mode.S));
+    }
+
+    /**
+     * Readers and writers of different pages of a table take compatible
+     * intention locks on the table
+     */
+    @Test public void intentionLocks() throws Exception {
+        lm.acquire(tid1, p0, false);
+        lm.acquire(tid2, p1, true);
+        assertEquals(LockManager.Mode.IS, lm.getTableMode(tid1, 1));
+        assertEquals(LockManager.Mode.IX, lm.getTableMode(tid2, 1));
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertFalse(lm.holdsLock(tid1, p1));
+    }
+
+    /**
+     * A reader of many pages escalates to a shared table lock and drops its
+     * page locks; writers of the table then wait for it
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, true);
+        for (int i = 1; i <= 5; ++i)
+            lm.acquire(tid1, new HeapPageId(1, i), false);
+        assertEquals(LockManager.Mode.SIX, lm.getTableMode(tid1, 1));
+        assertEquals(Collections.singleton(p0), lm.getLockedPages(tid1));
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 42)));
+        assertEquals(1, lm.getStats().getEscalations());
+
+        Waiter reader = startWaiter(tid2, new HeapPageId(1, 7), false, order);
+        Waiter writer = startWaiter(tid3, new HeapPageId(1, 8), true, order);
+        reader.join(TIMEOUT * 10);
+        assertTrue(reader.granted);
+        assertFalse(writer.granted);
+        lm.acquire(tid3, new HeapPageId(2, 0), true);
+        lm.releaseAll(tid1);
+        writer.join(TIMEOUT * 10);
+        assertTrue(writer.granted);
+    }
+
+    /**
+     * A request that waits longer than the timeout is aborted, and the
+     * requests queued behind it go on waiting
+     */
+    @Test public void waitTimeout() throws Exception {
+        lm.setWaitTimeout(TIMEOUT);
+        List<TransactionId> order = Collections.synchronizedList(new ArrayList<TransactionId>());
+        lm.acquire(tid1, p0, true);
+        Waiter w = startWaiter(tid2, true, order);
+        w.join(TIMEOUT * 10);
+        assertTrue(w.aborted);
+        assertEquals(1, lm.getStats().getTimeouts());
+
+        lm.setWaitTimeout(0);
+        Waiter patient = startWaiter(tid3, false, order);
+        Thread.sleep(TIMEOUT * 2);
+        assertFalse(patient.aborted);
+        lm.releaseAll(tid1);
+        patient.join(TIMEOUT * 10);
+        assertTrue(patient.granted);
+    }
+
+    /**
+     * A reader at its lock budget escalates to a table lock; a writer, whose
+     * page locks cannot be escalated, is aborted
+     */
+    @Test public void lockBudget() throws Exception {
+        lm.setLockBudget(4);
+        for (int i = 0; i < 6; ++i)
+            lm.acquire(tid1, new HeapPageId(1, i), false);
+        assertEquals(LockManager.Mode.S, lm.getTableMode(tid1, 1));
+        assertEquals(1, lm.getStats().getEscalations());
+
+        for (int i = 0; i < 3; ++i)
+            lm.acquire(tid2, new HeapPageId(2, i), true);
+        try {
+            lm.acquire(tid2, new HeapPageId(2, 3), true);
+            fail("expected the transaction to exceed its lock budget");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getStats().getOverBudget());
+        assertFalse(lm.holdsExclusive(tid2, new HeapPageId(2, 3)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,236 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private static final int COMMITTERS = 8;
+
+    private File f;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("logfiletest", ".log");
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() {
+        f.delete();
+    }
+
+    /** Begins and commits a transaction in each of n threads at once */
+    private void commitConcurrently(int n) throws Exception {
+        Thread[] threads = new Thread[n];
+        final boolean[] done = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            final int me = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                        done[me] = true;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < n; ++i) {
+            threads[i].join(10000);
+            assertTrue(done[i]);
+        }
+    }
+
+    /**
+     * Each commit forces the log when transactions commit one at a time
+     */
+    @Test public void forcePerCommit() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        assertEquals(3, log.getForceCount());
+    }
+
+    /**
+     * Transactions that commit at the same time share a force of the log
+     * while it waits for the group to fill
+     */
+    @Test public void groupCommit() throws Exception {
+        log.setGroupCommit(1000000, COMMITTERS);
+        commitConcurrently(COMMITTERS);
+        assertTrue(log.getForceCount() < COMMITTERS);
+        assertEquals(2 * COMMITTERS, log.getTotalRecords());
+    }
+
+    /**
+     * Transactions that update pages and commit at the same time share a
+     * force of the log, which covers their page records and COMMIT records
+     */
+    @Test public void groupCommitWithPages() throws Exception {
+        final HeapFile[] tables = new HeapFile[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; ++i)
+            tables[i] = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        LogFile dbLog = Database.getLogFile();
+        dbLog.setGroupCommit(1000000, COMMITTERS);
+        long forces = dbLog.getForceCount();
+        Thread[] threads = new Thread[COMMITTERS];
+        final boolean[] done = new boolean[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; ++i) {
+            final int me = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), tables[me].getId(),
+                                Utility.getHeapTuple(me, 2));
+                        t.commit();
+                        done[me] = true;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < COMMITTERS; ++i) {
+            threads[i].join(10000);
+            assertTrue(done[i]);
+        }
+        assertTrue(dbLog.getForceCount() - forces < COMMITTERS);
+        for (HeapFile table : tables) {
+            HeapPage p = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+            assertEquals(2, p.getNumUsedSlots());
+        }
+    }
+
+    /**
+     * Records stay in the log buffer until the log is forced; an update
+     * record gives the page its LSN, and forcing up to an LSN already on
+     * disk does nothing
+     */
+    @Test public void bufferedRecords() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, after.getLSN());
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        assertEquals(2, after.getLSN());
+        assertEquals(LogFile.LONG_SIZE, f.length());
+
+        log.force(after.getLSN());
+        assertTrue(f.length() > LogFile.LONG_SIZE);
+        assertEquals(1, log.getForceCount());
+        log.force(after.getLSN());
+        log.force(0);
+        assertEquals(1, log.getForceCount());
+    }
+
+    /**
+     * The pages a commit writes are covered by the force of its COMMIT
+     * record, so checking their LSNs before the writes forces nothing
+     */
+    @Test public void commitForcesOnce() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        LogFile dbLog = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3; ++i) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Database.getBufferPool().deleteTuple(t.getId(), p.iterator().next());
+        }
+        long forces = dbLog.getForceCount();
+        t.commit();
+        assertEquals(forces + 1, dbLog.getForceCount());
+        for (int i = 0; i < 3; ++i)
+            assertEquals(503, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), i))).getNumUsedSlots());
+    }
+
+    /** Returns a copy of a page with a tuple inserted */
+    private HeapPage withTuple(HeapPage page) throws Exception {
+        HeapPage after = new HeapPage(page.getId(), page.getPageData());
+        after.insertTuple(Utility.getHeapTuple(-1, 2));
+        return after;
+    }
+
+    /**
+     * A one-tuple update is logged as a small delta record, which is undone
+     * by an abort and redone by recovery
+     */
+    @Test public void deltaRecords() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPage after = withTuple(before);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.force();
+        assertTrue(f.length() < BufferPool.getPageSize() / 16);
+        hf.writePage(after);
+        log.logAbort(tid);
+        assertTrue(Arrays.equals(before.getPageData(), hf.readPage(before.getId()).getPageData()));
+
+        TransactionId committer = new TransactionId();
+        log.logXactionBegin(committer);
+        log.logWrite(committer, before, after);
+        log.logCommit(committer);
+        //the page write was lost
+        log.recover();
+        assertTrue(Arrays.equals(after.getPageData(), hf.readPage(before.getId()).getPageData()));
+    }
+
+    /**
+     * Recovery redoes a delta record of a page that was emptied and then
+     * truncated from its file
+     */
+    @Test public void deltaOfTruncatedPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 505, null, null);
+        HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1));
+        HeapPage after = new HeapPage(before.getId(), before.getPageData());
+        after.deleteTuple(after.iterator().next());
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.logCommit(tid);
+        hf.writePage(after);
+        //a vacuum drops the empty page
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        raf.setLength(BufferPool.getPageSize());
+        raf.close();
+
+        log.recover();
+        HeapPage recovered = (HeapPage) hf.readPage(after.getId());
+        assertEquals(0, recovered.getNumUsedSlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
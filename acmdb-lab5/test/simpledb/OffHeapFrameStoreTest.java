@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OffHeapFrameStoreTest extends SimpleDbTestBase {
+
+    private static byte[] bytes(int size, int value) {
+        byte[] b = new byte[size];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    /**
+     * Unit test for OffHeapFrameStore put/take and frame reuse
+     */
+    @Test public void putTakeAndReuse() {
+        OffHeapFrameStore store = new OffHeapFrameStore(3 * 64 + 10, 64);
+        assertEquals(3, store.numFrames());
+        for (int i = 0; i < 3; ++i)
+            store.put(new HeapPageId(1, i), bytes(64, i));
+        assertEquals(3, store.size());
+
+        // a fourth page reuses a frame
+        store.put(new HeapPageId(1, 3), bytes(32, 3));
+        assertEquals(3, store.size());
+        assertArrayEquals(bytes(32, 3), store.take(new HeapPageId(1, 3)));
+        assertNull(store.take(new HeapPageId(1, 3)));
+
+        // pages larger than a frame are not stored
+        store.put(new HeapPageId(1, 4), bytes(65, 4));
+        assertNull(store.take(new HeapPageId(1, 4)));
+
+        int found = 0;
+        for (int i = 0; i < 3; ++i) {
+            byte[] b = store.take(new HeapPageId(1, i));
+            if (b != null) {
+                assertArrayEquals(bytes(64, i), b);
+                ++found;
+            }
+        }
+        assertEquals(2, found);
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * Pages evicted from the pool are rebuilt from the frame store, not read from disk
+     */
+    @Test public void bufferPoolRebuildsFromFrames() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        BufferPool bp = Database.resetBufferPool(4, 16L * BufferPool.getPageSize());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; ++i)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+
+        // wipe the file: pages still served from the frame store keep their tuples
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        raf.write(new byte[(int) raf.length()]);
+        raf.close();
+        for (int i = 0; i < 10; ++i) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            assertEquals(504, p.getNumUsedSlots());
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapFrameStoreTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OptimisticTest extends SimpleDbTestBase {
+    private static final int ROWS = 504 * 3;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Counts the committed tuples in a new transaction */
+    private int committedTuples() throws Exception {
+        TransactionId tid = new TransactionId();
+        int n = countTuples(tid);
+        bp.transactionComplete(tid);
+        return n;
+    }
+
+    private Transaction beginOptimistic() {
+        Transaction t = new Transaction(Transaction.Mode.OPTIMISTIC);
+        t.start();
+        return t;
+    }
+
+    /** Deletes n tuples of a page in tid */
+    private void deleteTuples(TransactionId tid, int pgNo, int n) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = p.iterator(); it.hasNext() && tuples.size() < n; )
+            tuples.add(it.next());
+        for (Tuple t : tuples)
+            bp.deleteTuple(tid, t);
+    }
+
+    /**
+     * An optimistic transaction updates private pages without locking them;
+     * its changes are seen by others once it commits
+     */
+    @Test public void privateUntilCommit() throws Exception {
+        Transaction t = beginOptimistic();
+        deleteTuples(t.getId(), 0, 10);
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(-1, 2));
+        assertFalse(bp.holdsLock(t.getId(), new HeapPageId(hf.getId(), 0)));
+        assertEquals(ROWS - 9, countTuples(t.getId()));
+        assertEquals(ROWS, committedTuples());
+
+        t.commit();
+        assertEquals(ROWS - 9, committedTuples());
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(ROWS - 9, committedTuples());
+    }
+
+    /**
+     * An optimistic transaction that read a page another transaction
+     * committed since fails validation, and none of its changes survive
+     */
+    @Test public void staleReadAborts() throws Exception {
+        Transaction t = beginOptimistic();
+        assertEquals(ROWS, countTuples(t.getId()));
+        deleteTuples(t.getId(), 1, 5);
+
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 1);
+        bp.transactionComplete(writer, true);
+        try {
+            t.validate();
+            fail("expected the transaction to fail validation");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(bp.isOptimistic(t.getId()));
+        assertEquals(ROWS - 1, committedTuples());
+    }
+
+    /**
+     * Committing an optimistic transaction that was not validated
+     * validates it, and a failure surfaces as a ValidationException
+     */
+    @Test public void staleCommitAborts() throws Exception {
+        Transaction t = beginOptimistic();
+        assertEquals(ROWS, countTuples(t.getId()));
+        deleteTuples(t.getId(), 1, 5);
+
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 1);
+        bp.transactionComplete(writer, true);
+        try {
+            t.commit();
+            fail("expected the transaction to fail validation");
+        } catch (ValidationException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        assertFalse(bp.isOptimistic(t.getId()));
+        assertEquals(ROWS - 1, committedTuples());
+    }
+
+    /**
+     * Optimistic transactions that update different pages both commit
+     */
+    @Test public void disjointWritersCommit() throws Exception {
+        Transaction t1 = beginOptimistic();
+        Transaction t2 = beginOptimistic();
+        deleteTuples(t1.getId(), 0, 3);
+        deleteTuples(t2.getId(), 1, 4);
+        t2.commit();
+        t1.commit();
+        assertEquals(ROWS - 7, committedTuples());
+        assertEquals(0, bp.getVersionCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
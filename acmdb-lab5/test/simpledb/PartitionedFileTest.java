@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PartitionedFileTest extends SimpleDbTestBase {
+    private HeapFile[] partitions;
+    private PartitionedFile pf;
+
+    /**
+     * Set up a table with two int columns, range partitioned on the first
+     * column at 100 and 200, holding the values 0..299.
+     */
+    @Before public void setUp() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2, "c");
+        partitions = new HeapFile[3];
+        for (int i = 0; i < partitions.length; ++i) {
+            File part = File.createTempFile("part", ".dat");
+            part.deleteOnExit();
+            partitions[i] = new HeapFile(part, td);
+        }
+        File f = File.createTempFile("parted", ".dat");
+        f.deleteOnExit();
+        pf = new PartitionedFile(f, partitions, 0, new PartitionedFile.RangeScheme(
+                new Field[] { new IntField(100), new IntField(200) }));
+        Database.getCatalog().addTable(pf, "parted");
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 300; ++i) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, pf.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int count(DbFileIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Unit test for tuple routing and Catalog lookup of partitions
+     */
+    @Test public void insertRoutesByRange() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (HeapFile p : partitions) {
+            assertEquals(100, count(p.iterator(tid)));
+            assertSame(p, Database.getCatalog().getDatabaseFile(p.getId()));
+        }
+        assertEquals(300, count(pf.iterator(tid)));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // partitions are not tables of their own
+        Iterator<Integer> ids = Database.getCatalog().tableIdIterator();
+        while (ids.hasNext()) {
+            int id = ids.next();
+            for (HeapFile p : partitions)
+                assertTrue(id != p.getId());
+        }
+    }
+
+    /**
+     * Unit test for PartitionedFile.prune()
+     */
+    @Test public void prune() {
+        assertEquals(Arrays.asList(0, 1, 2), pf.prune(new ArrayList<Predicate>()));
+        assertEquals(Arrays.asList(1), pf.prune(Arrays.asList(
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(100)))));
+        assertEquals(Arrays.asList(0), pf.prune(Arrays.asList(
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)))));
+        assertEquals(Arrays.asList(0, 1), pf.prune(Arrays.asList(
+                new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(100)))));
+        assertEquals(Arrays.asList(1, 2), pf.prune(Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(150)),
+                new Predicate(1, Predicate.Op.EQUALS, new IntField(7)))));
+        assertEquals(Arrays.asList(1), pf.prune(Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(150)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(160)))));
+
+        PartitionedFile.HashScheme hash = new PartitionedFile.HashScheme(4);
+        int p = hash.partitionOf(new IntField(42));
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(i == p, hash.mayMatch(i, Predicate.Op.EQUALS, new IntField(42)));
+            assertTrue(hash.mayMatch(i, Predicate.Op.LESS_THAN, new IntField(42)));
+        }
+    }
+
+    /**
+     * The catalog refuses a table whose id is the id of a partition, and a
+     * partition whose id is the id of another table, rather than returning
+     * the wrong file for it
+     */
+    @Test public void partitionIdCollisionRejected() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2, "c");
+        try {
+            Database.getCatalog().addTable(new TestUtil.SkeletonFile(partitions[1].getId(), td), "other");
+            fail("expected the id to be in use");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        File f = File.createTempFile("parted", ".dat");
+        f.deleteOnExit();
+        try {
+            Database.getCatalog().addTable(new PartitionedFile(f, new DbFile[] { table }, 0,
+                    new PartitionedFile.HashScheme(1)), "other");
+            fail("expected the id to be in use");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertSame(partitions[1], Database.getCatalog().getDatabaseFile(partitions[1].getId()));
+        assertSame(table, Database.getCatalog().getDatabaseFile(table.getId()));
+    }
+
+    /**
+     * Unit test for partition pruning in LogicalPlan.physicalPlan()
+     */
+    @Test public void physicalPlanPrunes() throws Exception {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("parted", new TableStats(pf.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(pf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN_OR_EQ, "250");
+        lp.addProjectField("t.c0", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int n = 0;
+        while (plan.hasNext()) {
+            assertTrue(((IntField) plan.next().getField(0)).getValue() >= 250);
+            ++n;
+        }
+        plan.close();
+        assertEquals(50, n);
+
+        // only the last partition was read
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(partitions[0].getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(partitions[1].getId(), 0)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(partitions[2].getId(), 0)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PartitionedFileTest.class);
+    }
+}
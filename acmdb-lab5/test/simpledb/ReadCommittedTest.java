@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadCommittedTest extends SimpleDbTestBase {
+    private static final long TIMEOUT = 100;
+    private static final int ROWS = 504 * 3;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    private TransactionId readCommitted() {
+        TransactionId tid = new TransactionId();
+        bp.setIsolationLevel(tid, IsolationLevel.READ_COMMITTED);
+        return tid;
+    }
+
+    private PageId page(int n) {
+        return new HeapPageId(hf.getId(), n);
+    }
+
+    /** Deletes n tuples of a page in tid */
+    private void deleteTuples(TransactionId tid, int pgNo, int n) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, page(pgNo), Permissions.READ_WRITE);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = p.iterator(); it.hasNext() && tuples.size() < n; )
+            tuples.add(it.next());
+        for (Tuple t : tuples)
+            bp.deleteTuple(tid, t);
+    }
+
+    /**
+     * A READ COMMITTED scan holds no page locks once it is done, so a writer
+     * updates the pages before the reader completes, and the reader sees
+     * the update when it reads again
+     */
+    @Test public void locksReleasedAfterScan() throws Exception {
+        TransactionId reader = readCommitted();
+        TransactionId serializable = new TransactionId();
+        assertEquals(ROWS, countTuples(reader));
+        assertEquals(ROWS, countTuples(serializable));
+        assertFalse(bp.holdsLock(reader, page(0)));
+        assertTrue(bp.holdsLock(serializable, page(0)));
+        bp.transactionComplete(serializable);
+
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 10);
+        bp.transactionComplete(writer, true);
+        assertEquals(ROWS - 10, countTuples(reader));
+        assertEquals(IsolationLevel.READ_COMMITTED, bp.getIsolationLevel(reader));
+        bp.transactionComplete(reader);
+        assertEquals(IsolationLevel.SERIALIZABLE, bp.getIsolationLevel(reader));
+    }
+
+    /**
+     * A READ COMMITTED scan waits for the writer of a page it reads, and
+     * does not see uncommitted changes
+     */
+    @Test public void noDirtyReads() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 1, 10);
+        final TransactionId reader = readCommitted();
+        final int[] count = { -1 };
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    count[0] = countTuples(reader);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(-1, count[0]);
+        bp.transactionComplete(writer, false);
+        t.join(TIMEOUT * 10);
+        assertEquals(ROWS, count[0]);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Under row locking, a READ COMMITTED scan releases its row locks with
+     * the page
+     */
+    @Test public void rowLocksReleased() throws Exception {
+        bp.setRowLocking(hf.getId(), true);
+        TransactionId reader = readCommitted();
+        assertEquals(ROWS, countTuples(reader));
+
+        TransactionId writer = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(writer, page(2), Permissions.READ_ONLY);
+        Tuple t = p.iterator().next();
+        bp.transactionComplete(writer);
+        writer = new TransactionId();
+        assertTrue(bp.tryLockRow(writer, t.getRecordId()));
+        bp.transactionComplete(writer);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadCommittedTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+    private static final ReplacementPolicy.Candidates ANY = pid -> true;
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * Unit test for ClockPolicy: recently referenced pages get a second chance
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy(3);
+        for (int i = 0; i < 3; ++i)
+            clock.recordAccess(page(i));
+        // all bits set: the first sweep clears them, then page 0 goes
+        assertEquals(page(0), clock.chooseVictim(ANY));
+        clock.recordAccess(page(0));
+        // page 0 was referenced again, page 1 was not
+        assertEquals(page(1), clock.chooseVictim(ANY));
+        clock.remove(page(1));
+        clock.recordAccess(page(3));
+        assertEquals(page(2), clock.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for ClockPolicy: pages that cannot be evicted are skipped
+     */
+    @Test public void clockSkipsUnevictable() {
+        ClockPolicy clock = new ClockPolicy(2);
+        clock.recordAccess(page(0));
+        clock.recordAccess(page(1));
+        assertEquals(page(1), clock.chooseVictim(pid -> !pid.equals(page(0))));
+        assertNull(clock.chooseVictim(pid -> false));
+        clock.remove(page(0));
+        clock.remove(page(1));
+        assertNull(clock.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: a page referenced twice survives a scan
+     */
+    @Test public void twoQueueResistsScans() {
+        TwoQueuePolicy q = new TwoQueuePolicy(8);
+        q.recordAccess(page(0));
+        // page 0 is pushed out of A1in by a page seen once
+        q.recordAccess(page(1));
+        q.recordAccess(page(2));
+        assertEquals(page(0), q.chooseVictim(ANY));
+        q.remove(page(0));
+        // referenced again while remembered in A1out: page 0 is hot now
+        q.recordAccess(page(0));
+        for (int i = 100; i < 200; ++i) {
+            q.recordAccess(page(i));
+            PageId victim = q.chooseVictim(ANY);
+            assertFalse(page(0).equals(victim));
+            q.remove(victim);
+        }
+        // only page 0 is left when the pool drains
+        assertEquals(page(0), q.chooseVictim(pid -> pid.equals(page(0))));
+    }
+
+    /**
+     * Unit test for the policy used by a BufferPool: a hot page is not evicted by a scan
+     */
+    @Test public void bufferPoolUsesPolicy() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = new BufferPool(8, TwoQueuePolicy::new);
+        TransactionId tid = new TransactionId();
+        PageId hot = new HeapPageId(hf.getId(), 0);
+        Page hotPage = bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+        // drop page 0 so that A1out remembers it, then reference it again
+        bp.discardPage(hot);
+        hotPage = bp.getPage(tid, hot, Permissions.READ_ONLY);
+        for (int i = 4; i < 20; ++i)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertSame(hotPage, bp.getPage(tid, hot, Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.AccessStrategy: a scan of a file larger than the pool
+     * goes through a ring and leaves the cached pages of other tables alone
+     */
+    @Test public void scanRingKeepsWorkingSet() throws Exception {
+        HeapFile hot = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        HeapFile big = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+        assertEquals(BufferPool.AccessStrategy.SEQUENTIAL_SCAN, bp.scanStrategy(big.getId(), big.numPages()));
+        assertEquals(BufferPool.AccessStrategy.NORMAL, bp.scanStrategy(hot.getId(), hot.numPages()));
+
+        TransactionId tid = new TransactionId();
+        Page[] hotPages = new Page[4];
+        for (int i = 0; i < 4; ++i)
+            hotPages[i] = bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        assertEquals(504 * 40, n);
+        for (int i = 0; i < 4; ++i)
+            assertSame(hotPages[i], bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RowLockingTest extends SimpleDbTestBase {
+    private static final long TIMEOUT = 100;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        //page 1 has 10 free slots
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2 - 10, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRowLocking(hf.getId(), true);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Counts the tuples in a new transaction, from disk if fromDisk */
+    private int committedTuples(boolean fromDisk) throws Exception {
+        if (fromDisk) {
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            bp.setRowLocking(hf.getId(), true);
+        }
+        TransactionId tid = new TransactionId();
+        int n = countTuples(tid);
+        bp.transactionComplete(tid);
+        return n;
+    }
+
+    private ArrayList<Tuple> tuplesOfPage(int pgNo) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = p.iterator(); it.hasNext(); )
+            tuples.add(it.next());
+        bp.transactionComplete(tid);
+        return tuples;
+    }
+
+    private Tuple newTuple(int value) {
+        return Utility.getHeapTuple(value, 2);
+    }
+
+    /**
+     * Two transactions delete different tuples of one page without waiting;
+     * one commits and the other aborts
+     */
+    @Test public void deletesOfOnePage() throws Exception {
+        ArrayList<Tuple> tuples = tuplesOfPage(0);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, tuples.get(0));
+        bp.deleteTuple(t2, tuples.get(1));
+        assertFalse(bp.holdsLock(t1, tuples.get(0).getRecordId().getPageId()));
+
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, false);
+        assertEquals(504 * 2 - 11, committedTuples(false));
+        assertEquals(504 * 2 - 11, committedTuples(true));
+        HeapPage p = (HeapPage) Database.getCatalog().getDatabaseFile(hf.getId())
+                .readPage(new HeapPageId(hf.getId(), 0));
+        assertFalse(p.isSlotUsed(tuples.get(0).getRecordId().tupleno()));
+        assertTrue(p.isSlotUsed(tuples.get(1).getRecordId().tupleno()));
+    }
+
+    /**
+     * Two transactions insert into the same page without waiting, and do not
+     * reuse a slot freed by an uncommitted delete
+     */
+    @Test public void insertsIntoOnePage() throws Exception {
+        ArrayList<Tuple> tuples = tuplesOfPage(0);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        bp.deleteTuple(t3, tuples.get(0));
+        Tuple a = newTuple(-1);
+        Tuple b = newTuple(-2);
+        bp.insertTuple(t1, hf.getId(), a);
+        bp.insertTuple(t2, hf.getId(), b);
+        assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+        assertEquals(1, a.getRecordId().getPageId().pageNumber());
+        assertFalse(a.getRecordId().equals(b.getRecordId()));
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        bp.transactionComplete(t3, false);
+        assertEquals(504 * 2 - 9, committedTuples(false));
+        assertEquals(504 * 2 - 9, committedTuples(true));
+    }
+
+    /**
+     * A row locked commit logs the rows it changed once, even when its pages
+     * were flushed before it committed
+     */
+    @Test public void commitLogsRowsOnce() throws Exception {
+        LogFile log = Database.getLogFile();
+        int records = log.getTotalRecords();
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), newTuple(-1));
+        t.commit();
+        //BEGIN, the update of the page and COMMIT
+        assertEquals(records + 3, log.getTotalRecords());
+
+        records = log.getTotalRecords();
+        t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), newTuple(-2));
+        bp.flushPages(t.getId());
+        t.commit();
+        assertEquals(records + 3, log.getTotalRecords());
+        assertEquals(504 * 2 - 8, committedTuples(true));
+    }
+
+    /**
+     * A reader waits for the uncommitted delete of a tuple it reads, and
+     * does not see the tuple once the delete commits
+     */
+    @Test public void readerWaitsForWriter() throws Exception {
+        ArrayList<Tuple> tuples = tuplesOfPage(0);
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, tuples.get(0));
+
+        final int[] count = { -1 };
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    count[0] = committedTuples(false);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(-1, count[0]);
+        bp.transactionComplete(writer, true);
+        reader.join(TIMEOUT * 10);
+        assertEquals(504 * 2 - 11, count[0]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotTest extends SimpleDbTestBase {
+    private static final int ROWS = 504 * 3;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int countTuples(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    private TransactionId beginSnapshot() {
+        TransactionId tid = new TransactionId();
+        bp.beginSnapshot(tid);
+        return tid;
+    }
+
+    /** Deletes n tuples of a page in tid */
+    private void deleteTuples(TransactionId tid, int pgNo, int n) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_WRITE);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = p.iterator(); it.hasNext() && tuples.size() < n; )
+            tuples.add(it.next());
+        for (Tuple t : tuples)
+            bp.deleteTuple(tid, t);
+    }
+
+    /**
+     * A snapshot reads pages locked by a writer without waiting, and does not
+     * see the writer's changes, even after they commit
+     */
+    @Test public void readerIgnoresWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 10);
+        TransactionId reader = beginSnapshot();
+        assertEquals(ROWS, countTuples(reader));
+        assertFalse(bp.holdsLock(reader, new HeapPageId(hf.getId(), 0)));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(ROWS, countTuples(reader));
+        assertEquals(1, bp.getVersionCount());
+        TransactionId later = beginSnapshot();
+        assertEquals(ROWS - 10, countTuples(later));
+
+        bp.transactionComplete(reader, true);
+        bp.transactionComplete(later, true);
+        assertEquals(0, bp.getVersionCount());
+    }
+
+    /**
+     * A writer locks pages a snapshot is reading at once
+     */
+    @Test public void writerIgnoresReader() throws Exception {
+        TransactionId reader = beginSnapshot();
+        DbFileIterator it = hf.iterator(reader);
+        it.open();
+        it.next();
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 1);
+        assertTrue(bp.holdsLock(writer, new HeapPageId(hf.getId(), 0)));
+        bp.transactionComplete(writer, true);
+        int n = 1;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        assertEquals(ROWS, n);
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * The committed image of a page stolen by a running writer is kept for
+     * snapshots, and dropped when the writer aborts
+     */
+    @Test public void stolenPage() throws Exception {
+        bp = Database.resetBufferPool(2);
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 10);
+        deleteTuples(writer, 1, 10);
+        bp.getPage(writer, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(1, bp.getVersionCount());
+
+        TransactionId reader = beginSnapshot();
+        assertEquals(ROWS, countTuples(reader));
+        bp.transactionComplete(writer, false);
+        assertEquals(0, bp.getVersionCount());
+        assertEquals(ROWS, countTuples(reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * A read-only transaction cannot update pages
+     */
+    @Test public void readOnly() throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        assertTrue(bp.isSnapshot(t.getId()));
+        try {
+            deleteTuples(t.getId(), 0, 1);
+            fail("expected a read-only transaction not to update a page");
+        } catch (DbException e) {
+            // expected
+        }
+        t.commit();
+        assertFalse(bp.isSnapshot(t.getId()));
+    }
+
+    /**
+     * Read-only transactions share the committed image of a cached page until
+     * a commit changes it, and write no log records
+     */
+    @Test public void sharedImages() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        int records = Database.getLogFile().getTotalRecords();
+        Transaction t1 = new Transaction(true);
+        Transaction t2 = new Transaction(true);
+        t1.start();
+        t2.start();
+        Page p1 = bp.getPage(t1.getId(), pid, Permissions.READ_ONLY);
+        assertSame(p1, bp.getPage(t2.getId(), pid, Permissions.READ_ONLY));
+        t1.commit();
+        t2.commit();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+
+        TransactionId writer = new TransactionId();
+        deleteTuples(writer, 0, 10);
+        TransactionId reader = beginSnapshot();
+        assertSame(p1, bp.getPage(reader, pid, Permissions.READ_ONLY));
+        bp.transactionComplete(writer, true);
+        assertEquals(ROWS, countTuples(reader));
+        TransactionId later = beginSnapshot();
+        assertNotSame(p1, bp.getPage(later, pid, Permissions.READ_ONLY));
+        assertEquals(ROWS - 10, countTuples(later));
+        bp.transactionComplete(reader, true);
+        bp.transactionComplete(later, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
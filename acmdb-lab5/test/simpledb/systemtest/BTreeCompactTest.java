@@ -0,0 +1,150 @@
+package simpledb.systemtest;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.*;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompactTest extends SimpleDbTestBase {
+
+	@After
+	public void tearDown() throws Exception {
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Delete tuples from every leaf page until it is exactly at minimum occupancy, so
+	 * that no merges happen during the deletes but every pair of leaf pages fits on one page.
+	 */
+	private ArrayList<Tuple> thinLeafPages(BTreeFile bf) throws Exception {
+		TransactionId tid = new TransactionId();
+		HashMap<PageId, ArrayList<Tuple>> byPage = new HashMap<PageId, ArrayList<Tuple>>();
+		ArrayList<PageId> order = new ArrayList<PageId>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			PageId pid = t.getRecordId().getPageId();
+			if(!byPage.containsKey(pid)) {
+				byPage.put(pid, new ArrayList<Tuple>());
+				order.add(pid);
+			}
+			byPage.get(pid).add(t);
+		}
+		it.close();
+
+		ArrayList<Tuple> remaining = new ArrayList<Tuple>();
+		int maxTuples = BTreeUtility.getNumTuplesPerPage(2);
+		int minTuples = maxTuples - (maxTuples - maxTuples / 2);
+		for(PageId pid : order) {
+			ArrayList<Tuple> tuples = byPage.get(pid);
+			for(int i = 0; i < tuples.size(); i++) {
+				if(i < tuples.size() - minTuples) {
+					Database.getBufferPool().deleteTuple(tid, tuples.get(i));
+				}
+				else {
+					remaining.add(tuples.get(i));
+				}
+			}
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		return remaining;
+	}
+
+	@Test
+	public void testCompactMergesAndTruncates() throws Exception {
+		// 10 full leaf pages and 1 internal page
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 502 * 10, null, null, 0);
+		assertEquals(11, bf.numPages());
+		ArrayList<Tuple> remaining = thinLeafPages(bf);
+		assertEquals(11, bf.numPages());
+
+		// the leaf pages merge pairwise, leaving 5 leaf pages, 1 internal page and 1 header page
+		int removed = bf.compact(4);
+		assertEquals(4, removed);
+		assertEquals(7, bf.numPages());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// every remaining tuple must still be there, in order
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		HashSet<Integer> keys = new HashSet<Integer>();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(remaining.size(), count);
+		for(Tuple t : remaining) {
+			assertTrue(keys.contains(((IntField) t.getField(0)).getValue()));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		// the compacted file keeps working
+		tid = new TransactionId();
+		for(int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void testCompactIsNoopOnDenseFile() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 502 * 4, null, null, 0);
+		int before = bf.numPages();
+		assertEquals(0, bf.compact(4));
+		assertEquals(before, bf.numPages());
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void testCompactRecoversFromLog() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 502 * 10, null, null, 0);
+		ArrayList<Tuple> remaining = thinLeafPages(bf);
+		byte[] image = Files.readAllBytes(bf.getFile().toPath());
+		assertEquals(4, bf.compact(4));
+
+		// lose every page the compaction wrote, then replay its transactions from the log
+		RandomAccessFile raf = new RandomAccessFile(bf.getFile(), "rw");
+		raf.setLength(0);
+		raf.write(image);
+		raf.close();
+		Database.getLogFile().recover();
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(remaining.size(), count);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Make test compatible with older version of ant.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactTest.class);
+	}
+}
@@ -0,0 +1,98 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileVacuumTest extends SimpleDbTestBase {
+
+    /** Deletes all but keep tuples from every page of f, returning the rest. */
+    private ArrayList<ArrayList<Integer>> thinPages(HeapFile f, int keep) throws Exception {
+        TransactionId tid = new TransactionId();
+        HashMap<Integer, Integer> kept = new HashMap<>();
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<>();
+        ArrayList<Tuple> doomed = new ArrayList<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int pgNo = t.getRecordId().getPageId().pageNumber();
+            int n = kept.getOrDefault(pgNo, 0);
+            if (n < keep) {
+                kept.put(pgNo, n + 1);
+                remaining.add(SystemTestUtil.tupleToList(t));
+            } else {
+                doomed.add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        return remaining;
+    }
+
+    @Test public void testVacuumPacksAndTruncates() throws Exception {
+        // 504 tuples fit on a page of two int columns
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        assertEquals(6, f.numPages());
+        ArrayList<ArrayList<Integer>> remaining = thinPages(f, 100);
+        assertEquals(6, f.numPages());
+        for (int i = 0; i < 6; ++i)
+            assertEquals(100, f.getPageOccupancy(i));
+
+        final HashMap<RecordId, Tuple> moves = new HashMap<>();
+        int removed = f.vacuum((tid, oldRid, t) -> {
+            assertEquals(f.getId(), t.getRecordId().getPageId().getTableId());
+            moves.put(oldRid, t);
+        });
+
+        // 600 tuples fit on two pages
+        assertEquals(4, removed);
+        assertEquals(2, f.numPages());
+        assertEquals(600, f.getPageOccupancy(0) + f.getPageOccupancy(1));
+        assertEquals(400, moves.size());
+        for (RecordId rid : moves.keySet())
+            assertFalse(rid.getPageId().equals(moves.get(rid).getRecordId().getPageId()));
+        SystemTestUtil.matchTuples(f, remaining);
+
+        // the vacuumed file keeps working
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; ++i)
+            Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, f.numPages());
+    }
+
+    @Test public void testVacuumIsNoopOnDenseFile() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        assertEquals(0, f.vacuum(null));
+        assertEquals(3, f.numPages());
+    }
+
+    @Test public void testOccupancyOfCachedPage() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        TransactionId tid = new TransactionId();
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        Iterator<Tuple> it = p.iterator();
+        for (int i = 0; i < 4; ++i)
+            Database.getBufferPool().deleteTuple(tid, it.next());
+
+        // a file that has not seen page 0 yet counts its dirty copy in the pool
+        HeapFile other = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertEquals(500, other.getPageOccupancy(0));
+        assertEquals(504, other.getPageOccupancy(1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileVacuumTest.class);
+    }
+}